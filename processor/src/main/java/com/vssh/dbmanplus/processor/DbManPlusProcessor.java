@@ -0,0 +1,560 @@
+package com.vssh.dbmanplus.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates the DbItem and DbModel code of classes annotated with {@code @Table}.
+ * <br> For a class {@code Note} it writes, in the same package:
+ * <ul>
+ * <li>{@code Note_Item}, the superclass of {@code Note}. It reads cursor values by column ordinal into the
+ * fields and binds the fields straight into statements, without boxing primitive fields and without looking
+ * up columns by name.</li>
+ * <li>{@code Note_Model}, a {@code DbModel<Note>} with the table name, column constants, the CREATE TABLE
+ * statement and the remaining model boilerplate.</li>
+ * </ul>
+ * The annotations are matched by name, so the processor does not depend on the library.
+ */
+public class DbManPlusProcessor extends AbstractProcessor {
+    static final String TABLE = "com.vssh.dbmanplus.annotation.Table";
+    static final String COLUMN = "com.vssh.dbmanplus.annotation.Column";
+    static final String PRIMARY_KEY = "com.vssh.dbmanplus.annotation.PrimaryKey";
+
+    private static final String ITEM_SUFFIX = "_Item";
+    private static final String MODEL_SUFFIX = "_Model";
+
+    /**
+     * Java types of columns, and how they are stored
+     */
+    private enum Kind {
+        LONG("long", "Long", "INTEGER"),
+        INT("int", "Integer", "INTEGER"),
+        SHORT("short", "Short", "INTEGER"),
+        BYTE("byte", "Byte", "INTEGER"),
+        BOOLEAN("boolean", "Boolean", "INTEGER"),
+        DOUBLE("double", "Double", "REAL"),
+        FLOAT("float", "Float", "REAL"),
+        STRING(null, "String", "TEXT"),
+        BLOB(null, null, "BLOB");
+
+        final String primitive;
+        final String boxed;
+        final String sqlType;
+
+        Kind(String primitive, String boxed, String sqlType) {
+            this.primitive = primitive;
+            this.boxed = boxed;
+            this.sqlType = sqlType;
+        }
+
+        boolean isInteger() {
+            return sqlType.equals("INTEGER");
+        }
+
+        boolean isReal() {
+            return sqlType.equals("REAL");
+        }
+
+        /**
+         * Expression converting a long to the type of the field
+         */
+        String fromLong(String value) {
+            switch (this) {
+                case LONG:
+                    return value;
+                case BOOLEAN:
+                    return value + " != 0";
+                default:
+                    return "(" + primitive + ") " + value;
+            }
+        }
+
+        /**
+         * Expression converting a double to the type of the field
+         */
+        String fromDouble(String value) {
+            return this == DOUBLE ? value : "(" + primitive + ") " + value;
+        }
+    }
+
+    private static final class ColumnField {
+        final String field;
+        final String column;
+        final String constant;
+        final Kind kind;
+        final boolean nullable;
+        final boolean primaryKey;
+
+        ColumnField(String field, String column, Kind kind, boolean nullable, boolean primaryKey) {
+            this.field = field;
+            this.column = column;
+            this.constant = "COLUMN_" + constantName(column);
+            this.kind = kind;
+            this.nullable = nullable;
+            this.primaryKey = primaryKey;
+        }
+
+        /**
+         * Value of the field when the column is NULL
+         */
+        String nullValue() {
+            if (nullable) return "null";
+            return kind == Kind.BOOLEAN ? "false" : "0";
+        }
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        Set<String> types = new HashSet<>();
+        Collections.addAll(types, TABLE, COLUMN, PRIMARY_KEY);
+        return types;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement table = processingEnv.getElementUtils().getTypeElement(TABLE);
+        if (table == null) return false;
+        for (Element element : roundEnv.getElementsAnnotatedWith(table)) {
+            if (element.getKind() != ElementKind.CLASS) {
+                error(element, "@Table must annotate a class");
+                continue;
+            }
+            TypeElement type = (TypeElement) element;
+            if (type.getEnclosingElement().getKind() != ElementKind.PACKAGE) {
+                error(type, "@Table classes must be top-level classes");
+                continue;
+            }
+            List<ColumnField> columns = readColumns(type);
+            if (columns == null) continue;
+            try {
+                generate(type, tableName(type), columns);
+            } catch (IOException e) {
+                error(type, "Could not write generated code: " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the columns of the class, or null if an error was reported
+     */
+    private List<ColumnField> readColumns(TypeElement type) {
+        List<ColumnField> columns = new ArrayList<>();
+        boolean valid = true;
+        int primaryKeys = 0;
+        for (Element member : type.getEnclosedElements()) {
+            if (member.getKind() != ElementKind.FIELD) continue;
+            AnnotationMirror column = annotation(member, COLUMN);
+            boolean primaryKey = annotation(member, PRIMARY_KEY) != null;
+            if (column == null && !primaryKey) continue;
+
+            VariableElement field = (VariableElement) member;
+            Set<Modifier> modifiers = field.getModifiers();
+            if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.STATIC)
+                    || modifiers.contains(Modifier.FINAL)) {
+                error(field, "Column fields must not be private, static or final");
+                valid = false;
+                continue;
+            }
+            TypeMirror fieldType = field.asType();
+            Kind kind = kindOf(fieldType);
+            if (kind == null) {
+                error(field, "Unsupported column type " + fieldType);
+                valid = false;
+                continue;
+            }
+            if (primaryKey) primaryKeys++;
+            String name = column != null ? stringValue(column, "value") : "";
+            if (name.isEmpty()) name = field.getSimpleName().toString();
+            boolean nullable = !fieldType.getKind().isPrimitive();
+            columns.add(new ColumnField(field.getSimpleName().toString(), name, kind, nullable, primaryKey));
+        }
+        if (columns.isEmpty()) {
+            error(type, "@Table class has no @Column fields");
+            valid = false;
+        }
+        if (primaryKeys > 1) {
+            error(type, "Only one field can be the @PrimaryKey");
+            valid = false;
+        }
+        Set<String> constants = new HashSet<>();
+        for (ColumnField column : columns) {
+            if (!constants.add(column.constant)) {
+                error(type, "Columns map to the same constant " + column.constant);
+                valid = false;
+            }
+        }
+        return valid ? columns : null;
+    }
+
+    private Kind kindOf(TypeMirror type) {
+        switch (type.getKind()) {
+            case LONG:
+                return Kind.LONG;
+            case INT:
+                return Kind.INT;
+            case SHORT:
+                return Kind.SHORT;
+            case BYTE:
+                return Kind.BYTE;
+            case BOOLEAN:
+                return Kind.BOOLEAN;
+            case DOUBLE:
+                return Kind.DOUBLE;
+            case FLOAT:
+                return Kind.FLOAT;
+            case ARRAY:
+                return ((ArrayType) type).getComponentType().getKind() == TypeKind.BYTE ? Kind.BLOB : null;
+            case DECLARED:
+                String name = type.toString();
+                if (name.equals("java.lang.String")) return Kind.STRING;
+                for (Kind kind : Kind.values()) {
+                    if (kind.boxed != null && kind != Kind.STRING && name.equals("java.lang." + kind.boxed)) return kind;
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private String tableName(TypeElement type) {
+        String name = stringValue(annotation(type, TABLE), "value");
+        return name.isEmpty() ? type.getSimpleName().toString() : name;
+    }
+
+    private void generate(TypeElement type, String tableName, List<ColumnField> columns) throws IOException {
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        String packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        String className = type.getSimpleName().toString();
+        write(type, packageName, className + MODEL_SUFFIX, modelSource(packageName, className, tableName, columns));
+        write(type, packageName, className + ITEM_SUFFIX, itemSource(packageName, className, columns));
+    }
+
+    private void write(TypeElement origin, String packageName, String className, String source) throws IOException {
+        String name = packageName.isEmpty() ? className : packageName + "." + className;
+        Writer writer = processingEnv.getFiler().createSourceFile(name, origin).openWriter();
+        try {
+            writer.write(source);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String modelSource(String packageName, String className, String tableName, List<ColumnField> columns) {
+        String model = className + MODEL_SUFFIX;
+        ColumnField primaryKey = null;
+        for (ColumnField column : columns) {
+            if (column.primaryKey) primaryKey = column;
+        }
+
+        StringBuilder out = header(packageName);
+        out.append("import android.content.ContentValues;\n");
+        out.append("import androidx.annotation.NonNull;\n");
+        out.append("import com.vssh.dbmanplus.DbManPlus;\n");
+        out.append("import com.vssh.dbmanplus.DbModel;\n\n");
+        out.append("/**\n * Model of {@link ").append(className).append("}, generated from its annotations\n */\n");
+        out.append("public class ").append(model).append(" extends DbModel<").append(className).append("> {\n");
+        out.append("    public static final String TABLE_NAME = ").append(literal(tableName)).append(";\n");
+        for (ColumnField column : columns) {
+            out.append("    public static final String ").append(column.constant).append(" = ")
+                    .append(literal(column.column)).append(";\n");
+        }
+        out.append("    public static final String CREATE_TABLE = ")
+                .append(literal(createTable(tableName, columns))).append(";\n\n");
+        out.append("    static final String[] COLUMNS = {");
+        for (int i = 0; i < columns.size(); i++) {
+            out.append(i > 0 ? ", " : "").append(columns.get(i).constant);
+        }
+        out.append("};\n\n");
+
+        out.append("    public ").append(model).append("(DbManPlus dbManager) {\n");
+        out.append("        super(dbManager);\n");
+        out.append("    }\n\n");
+
+        out.append("    @Override\n");
+        out.append("    public String getTableName() {\n");
+        out.append("        return TABLE_NAME;\n");
+        out.append("    }\n\n");
+
+        if (primaryKey != null) {
+            out.append("    @Override\n");
+            out.append("    protected String getPrimaryKeyColumn() {\n");
+            out.append("        return ").append(primaryKey.constant).append(";\n");
+            out.append("    }\n\n");
+        }
+
+        out.append("    @Override\n");
+        out.append("    public boolean continueInsert(ContentValues values) {\n");
+        out.append("        return true;\n");
+        out.append("    }\n\n");
+
+        out.append("    @Override\n");
+        out.append("    protected boolean continueInsert(").append(className).append(" item) {\n");
+        out.append("        return true;\n");
+        out.append("    }\n\n");
+
+        out.append("    @Override\n");
+        out.append("    protected ").append(className).append(" getModelItem() {\n");
+        out.append("        return new ").append(className).append("();\n");
+        out.append("    }\n\n");
+
+        out.append("    /**\n");
+        out.append("     * The ordinals of the generated item follow this order, so it cannot be overridden\n");
+        out.append("     */\n");
+        out.append("    @NonNull\n");
+        out.append("    @Override\n");
+        out.append("    protected final String[] getTableColumns() {\n");
+        out.append("        return COLUMNS;\n");
+        out.append("    }\n");
+        return out.append("}\n").toString();
+    }
+
+    private static String createTable(String tableName, List<ColumnField> columns) {
+        StringBuilder sql = new StringBuilder("CREATE TABLE ").append(tableName).append(" (");
+        for (int i = 0; i < columns.size(); i++) {
+            ColumnField column = columns.get(i);
+            sql.append(i > 0 ? ", " : "").append(column.column).append(' ').append(column.kind.sqlType);
+            if (column.primaryKey) sql.append(" PRIMARY KEY");
+        }
+        return sql.append(')').toString();
+    }
+
+    private static String itemSource(String packageName, String className, List<ColumnField> columns) {
+        String model = className + MODEL_SUFFIX;
+        StringBuilder out = header(packageName);
+        out.append("import android.database.sqlite.SQLiteProgram;\n");
+        out.append("import com.vssh.dbmanplus.DbItem;\n\n");
+        out.append("/**\n * Superclass of {@link ").append(className)
+                .append("}, generated from its annotations. Reads and binds the column fields by ordinal.\n */\n");
+        out.append("public abstract class ").append(className).append(ITEM_SUFFIX).append(" extends DbItem {\n\n");
+
+        //typed setters by ordinal, as called by DbItem.fromCursor
+        out.append("    @Override\n");
+        out.append("    protected boolean setLong(int ordinal, long value) {\n");
+        StringBuilder cases = new StringBuilder();
+        for (int i = 0; i < columns.size(); i++) {
+            ColumnField column = columns.get(i);
+            if (column.kind.isInteger() || column.kind.isReal()) {
+                appendCase(cases, i, column, column.kind.fromLong("value"));
+            }
+        }
+        appendSwitch(out, className, cases);
+
+        out.append("    @Override\n");
+        out.append("    protected boolean setDouble(int ordinal, double value) {\n");
+        cases.setLength(0);
+        for (int i = 0; i < columns.size(); i++) {
+            ColumnField column = columns.get(i);
+            if (column.kind.isReal()) appendCase(cases, i, column, column.kind.fromDouble("value"));
+        }
+        appendSwitch(out, className, cases);
+
+        out.append("    @Override\n");
+        out.append("    protected boolean setString(int ordinal, String value) {\n");
+        cases.setLength(0);
+        for (int i = 0; i < columns.size(); i++) {
+            ColumnField column = columns.get(i);
+            if (column.kind == Kind.STRING) appendCase(cases, i, column, "value");
+        }
+        appendSwitch(out, className, cases);
+
+        out.append("    @Override\n");
+        out.append("    protected boolean setBlob(int ordinal, byte[] value) {\n");
+        cases.setLength(0);
+        for (int i = 0; i < columns.size(); i++) {
+            ColumnField column = columns.get(i);
+            if (column.kind == Kind.BLOB) appendCase(cases, i, column, "value");
+        }
+        appendSwitch(out, className, cases);
+
+        out.append("    @Override\n");
+        out.append("    protected boolean setNull(int ordinal) {\n");
+        cases.setLength(0);
+        for (int i = 0; i < columns.size(); i++) {
+            ColumnField column = columns.get(i);
+            appendCase(cases, i, column, column.nullValue());
+        }
+        appendSwitch(out, className, cases);
+
+        //getVal and toContentValues are generated together, so getVal can be bound directly
+        out.append("    @Override\n");
+        out.append("    protected boolean canBindFromGetVal() {\n");
+        out.append("        return true;\n");
+        out.append("    }\n\n");
+
+        //binding by position, any other column order goes through getVal
+        out.append("    @Override\n");
+        out.append("    protected boolean bindTo(SQLiteProgram program, String[] columns, int offset) {\n");
+        out.append("        if (columns != ").append(model).append(".COLUMNS) return super.bindTo(program, columns, offset);\n");
+        out.append("        ").append(className).append(" item = (").append(className).append(") this;\n");
+        for (int i = 0; i < columns.size(); i++) {
+            appendBind(out, columns.get(i), "offset + " + (i + 1));
+        }
+        out.append("        return true;\n");
+        out.append("    }\n\n");
+
+        //access by name, for code paths that work with ContentValues
+        out.append("    @Override\n");
+        out.append("    protected void setVal(String column, Long integerVal, Double floatingPointVal, String textVal, byte[] blobVal) {\n");
+        out.append("        ").append(className).append(" item = (").append(className).append(") this;\n");
+        out.append("        switch (column) {\n");
+        for (ColumnField column : columns) {
+            out.append("            case ").append(model).append('.').append(column.constant).append(":\n");
+            String target = "item." + column.field;
+            switch (column.kind) {
+                case STRING:
+                    out.append("                ").append(target).append(" = textVal;\n");
+                    break;
+                case BLOB:
+                    out.append("                ").append(target).append(" = blobVal;\n");
+                    break;
+                default:
+                    if (column.kind.isReal()) {
+                        out.append("                if (floatingPointVal != null) ").append(target).append(" = ")
+                                .append(column.kind.fromDouble("floatingPointVal.doubleValue()")).append(";\n");
+                        out.append("                else ");
+                    } else {
+                        out.append("                ");
+                    }
+                    out.append("if (integerVal != null) ").append(target).append(" = ")
+                            .append(column.kind.fromLong("integerVal.longValue()")).append(";\n");
+                    out.append("                else ").append(target).append(" = ").append(column.nullValue()).append(";\n");
+            }
+            out.append("                break;\n");
+        }
+        out.append("        }\n");
+        out.append("    }\n\n");
+
+        out.append("    @Override\n");
+        out.append("    protected Object getVal(String column) {\n");
+        out.append("        ").append(className).append(" item = (").append(className).append(") this;\n");
+        out.append("        switch (column) {\n");
+        for (ColumnField column : columns) {
+            out.append("            case ").append(model).append('.').append(column.constant).append(":\n");
+            out.append("                return item.").append(column.field).append(";\n");
+        }
+        out.append("        }\n");
+        out.append("        return null;\n");
+        out.append("    }\n");
+        return out.append("}\n").toString();
+    }
+
+    private static void appendCase(StringBuilder cases, int ordinal, ColumnField column, String value) {
+        cases.append("            case ").append(ordinal).append(":\n");
+        cases.append("                item.").append(column.field).append(" = ").append(value).append(";\n");
+        cases.append("                return true;\n");
+    }
+
+    private static void appendSwitch(StringBuilder out, String className, StringBuilder cases) {
+        if (cases.length() > 0) {
+            out.append("        ").append(className).append(" item = (").append(className).append(") this;\n");
+            out.append("        switch (ordinal) {\n").append(cases).append("        }\n");
+        }
+        out.append("        return false;\n");
+        out.append("    }\n\n");
+    }
+
+    private static void appendBind(StringBuilder out, ColumnField column, String index) {
+        String value = "item." + column.field;
+        String bind;
+        switch (column.kind) {
+            case BOOLEAN:
+                bind = "program.bindLong(" + index + ", " + value + " ? 1 : 0);";
+                break;
+            case DOUBLE:
+            case FLOAT:
+                bind = "program.bindDouble(" + index + ", " + value + ");";
+                break;
+            case STRING:
+                bind = "program.bindString(" + index + ", " + value + ");";
+                break;
+            case BLOB:
+                bind = "program.bindBlob(" + index + ", " + value + ");";
+                break;
+            default:
+                bind = "program.bindLong(" + index + ", " + value + ");";
+        }
+        if (column.nullable) {
+            out.append("        if (").append(value).append(" == null) program.bindNull(").append(index).append(");\n");
+            out.append("        else ").append(bind).append('\n');
+        } else {
+            out.append("        ").append(bind).append('\n');
+        }
+    }
+
+    private static StringBuilder header(String packageName) {
+        StringBuilder out = new StringBuilder(4096);
+        out.append("// Generated by the DbManPlus annotation processor. Do not edit.\n");
+        if (!packageName.isEmpty()) out.append("package ").append(packageName).append(";\n\n");
+        return out;
+    }
+
+    /**
+     * UPPER_SNAKE_CASE name of a column, without leading underscores
+     */
+    static String constantName(String column) {
+        StringBuilder name = new StringBuilder(column.length() + 8);
+        char previous = '_';
+        for (int i = 0; i < column.length(); i++) {
+            char c = column.charAt(i);
+            if (!Character.isJavaIdentifierPart(c)) c = '_';
+            if (Character.isUpperCase(c) && Character.isLowerCase(previous)) name.append('_');
+            if (c != '_' || name.length() > 0) name.append(Character.toUpperCase(c));
+            previous = c;
+        }
+        return name.length() > 0 ? name.toString() : "_";
+    }
+
+    private static String literal(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static AnnotationMirror annotation(Element element, String name) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            TypeElement type = (TypeElement) mirror.getAnnotationType().asElement();
+            if (type.getQualifiedName().contentEquals(name)) return mirror;
+        }
+        return null;
+    }
+
+    private static String stringValue(AnnotationMirror mirror, String key) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues().entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals(key)) return String.valueOf(entry.getValue().getValue());
+        }
+        return "";
+    }
+
+    private void error(Element element, String message) {
+        Messager messager = processingEnv.getMessager();
+        messager.printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
@@ -0,0 +1,179 @@
+package com.vssh.dbmanplus.processor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the processor in javac over small annotated classes, and checks the generated code and the errors
+ */
+public class DbManPlusProcessorTest {
+    private static final String ANNOTATIONS = "package com.vssh.dbmanplus.annotation;\n"
+            + "import java.lang.annotation.*;\n";
+    private static final String SCHEME = "string";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File mGenerated;
+
+    @Test
+    public void generatesModelAndItem() throws Exception {
+        List<String> errors = process("test.Note", "package test;\n"
+                + "import com.vssh.dbmanplus.annotation.*;\n"
+                + "@Table(\"notes\")\n"
+                + "public class Note {\n"
+                + "    @PrimaryKey long id;\n"
+                + "    @Column(\"note_title\") String title;\n"
+                + "    @Column boolean done;\n"
+                + "    @Column Double price;\n"
+                + "    @Column byte[] image;\n"
+                + "    int notAColumn;\n"
+                + "}\n");
+        assertEquals(Collections.<String>emptyList(), errors);
+
+        String model = generated("test/Note_Model.java");
+        assertTrue(model.contains("public class Note_Model extends DbModel<Note>"));
+        assertTrue(model.contains("TABLE_NAME = \"notes\";"));
+        assertTrue(model.contains("COLUMN_NOTE_TITLE = \"note_title\";"));
+        assertTrue(model.contains("\"CREATE TABLE notes (id INTEGER PRIMARY KEY, note_title TEXT, done INTEGER, "
+                + "price REAL, image BLOB)\""));
+        assertTrue(model.contains("COLUMNS = {COLUMN_ID, COLUMN_NOTE_TITLE, COLUMN_DONE, COLUMN_PRICE, COLUMN_IMAGE};"));
+        assertFalse(model.contains("notAColumn"));
+
+        String item = generated("test/Note_Item.java");
+        assertTrue(item.contains("public abstract class Note_Item extends DbItem"));
+        assertTrue(item.contains("case Note_Model.COLUMN_NOTE_TITLE:"));
+        assertFalse(item.contains("notAColumn"));
+    }
+
+    @Test
+    public void tableNameDefaultsToClassName() throws Exception {
+        List<String> errors = process("Item", "import com.vssh.dbmanplus.annotation.*;\n"
+                + "@Table public class Item { @Column String name; }\n");
+        assertEquals(Collections.<String>emptyList(), errors);
+        assertTrue(generated("Item_Model.java").contains("TABLE_NAME = \"Item\";"));
+    }
+
+    @Test
+    public void rejectsInvalidFields() throws Exception {
+        List<String> errors = process("test.Bad", "package test;\n"
+                + "import com.vssh.dbmanplus.annotation.*;\n"
+                + "@Table public class Bad {\n"
+                + "    @Column private String hidden;\n"
+                + "    @Column final long constant = 1;\n"
+                + "    @Column Object value;\n"
+                + "    @Column String name;\n"
+                + "}\n");
+        assertEquals(Arrays.asList("Column fields must not be private, static or final",
+                "Column fields must not be private, static or final",
+                "Unsupported column type java.lang.Object"), errors);
+        assertFalse(new File(mGenerated, "test/Bad_Model.java").exists());
+    }
+
+    @Test
+    public void rejectsInvalidTables() throws Exception {
+        assertEquals(Collections.singletonList("@Table class has no @Column fields"),
+                process("Empty", "@com.vssh.dbmanplus.annotation.Table public class Empty { int count; }\n"));
+        assertEquals(Collections.singletonList("@Table classes must be top-level classes"),
+                process("Outer", "import com.vssh.dbmanplus.annotation.*;\n"
+                        + "public class Outer { @Table public static class Inner { @Column String name; } }\n"));
+        assertEquals(Collections.singletonList("@Table must annotate a class"),
+                process("Kind", "@com.vssh.dbmanplus.annotation.Table public interface Kind { }\n"));
+        assertEquals(Collections.singletonList("Only one field can be the @PrimaryKey"),
+                process("Keys", "import com.vssh.dbmanplus.annotation.*;\n"
+                        + "@Table public class Keys { @PrimaryKey long a; @PrimaryKey long b; }\n"));
+        assertEquals(Collections.singletonList("Columns map to the same constant COLUMN_USER_NAME"),
+                process("Same", "import com.vssh.dbmanplus.annotation.*;\n"
+                        + "@Table public class Same { @Column String userName; @Column(\"user_name\") String name; }\n"));
+    }
+
+    @Test
+    public void constantNames() {
+        assertEquals("ID", DbManPlusProcessor.constantName("id"));
+        assertEquals("USER_NAME", DbManPlusProcessor.constantName("userName"));
+        assertEquals("USER_NAME", DbManPlusProcessor.constantName("user_name"));
+        assertEquals("ID", DbManPlusProcessor.constantName("_id"));
+        assertEquals("CREATED_AT", DbManPlusProcessor.constantName("created at"));
+        assertEquals("URL", DbManPlusProcessor.constantName("URL"));
+        assertEquals("_", DbManPlusProcessor.constantName("__"));
+    }
+
+    /**
+     * Run the processor over one class and the annotations
+     * @return messages of the reported errors
+     */
+    private List<String> process(String className, String source) throws IOException {
+        mGenerated = folder.newFolder();
+        List<JavaFileObject> sources = new ArrayList<>();
+        sources.add(source("com.vssh.dbmanplus.annotation.Table", ANNOTATIONS
+                + "@Retention(RetentionPolicy.CLASS) @Target(ElementType.TYPE)\n"
+                + "public @interface Table { String value() default \"\"; }\n"));
+        sources.add(source("com.vssh.dbmanplus.annotation.Column", ANNOTATIONS
+                + "@Retention(RetentionPolicy.CLASS) @Target(ElementType.FIELD)\n"
+                + "public @interface Column { String value() default \"\"; }\n"));
+        sources.add(source("com.vssh.dbmanplus.annotation.PrimaryKey", ANNOTATIONS
+                + "@Retention(RetentionPolicy.CLASS) @Target(ElementType.FIELD)\n"
+                + "public @interface PrimaryKey { }\n"));
+        sources.add(source(className, source));
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager files = compiler.getStandardFileManager(diagnostics, Locale.US, null);
+        try {
+            JavaCompiler.CompilationTask task = compiler.getTask(null, files, diagnostics,
+                    Arrays.asList("-proc:only", "-s", mGenerated.getPath()), null, sources);
+            task.setProcessors(Collections.singletonList(new DbManPlusProcessor()));
+            task.call();
+        } finally {
+            files.close();
+        }
+
+        List<String> errors = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() != Diagnostic.Kind.ERROR) continue;
+            //the generated code does not resolve without the library, only errors in the sources count
+            JavaFileObject file = diagnostic.getSource();
+            if (file == null || file.toUri().getScheme().equals(SCHEME)) errors.add(diagnostic.getMessage(Locale.US));
+        }
+        return errors;
+    }
+
+    private String generated(String path) throws IOException {
+        byte[] bytes = Files.readAllBytes(new File(mGenerated, path).toPath());
+        return new String(bytes, Charset.forName("UTF-8"));
+    }
+
+    private static JavaFileObject source(String className, final String code) {
+        URI uri = URI.create(SCHEME + ":///" + className.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension);
+        return new SimpleJavaFileObject(uri, JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return code;
+            }
+        };
+    }
+}
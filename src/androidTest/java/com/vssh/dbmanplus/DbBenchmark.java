@@ -0,0 +1,280 @@
+package com.vssh.dbmanplus;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Benchmark of the DbManPlus hot paths, to get a baseline before and after performance work.
+ * <br> Runs on a scratch database next to the app databases and deletes it afterwards. Measures single-row
+ * inserts, bulk inserts at several batch sizes, queries with object hydration, {@link DbItem#toContentValues},
+ * a concurrent read/write mix and export/import throughput. The result is a JSON object, so runs can be
+ * compared by a script.
+ * <br> Runs as an instrumentation test and logs the JSON under the tag DbBenchmark.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DbBenchmark {
+    private static final String TAG = "DbBenchmark";
+    private static final String DATABASE_NAME = "dbmanplus-benchmark.db";
+    private static final int[] BATCH_SIZES = {10, 100, 1000};
+    private static final int THREADS = 4;
+
+    @Test
+    public void benchmark() throws Exception {
+        Log.i(TAG, run(InstrumentationRegistry.getInstrumentation().getTargetContext(), 10000));
+    }
+
+    /**
+     * Run all benchmarks
+     * @param context any context of the app
+     * @param rows number of rows per benchmark, e.g. 10000
+     * @return the results as JSON: one entry per benchmark with operations, total nanoseconds and
+     *          operations per second, followed by the {@link DbMetrics} snapshot of the run
+     * @throws Exception if a benchmark fails
+     */
+    @WorkerThread
+    public static String run(Context context, int rows) throws Exception {
+        File dbFile = context.getApplicationContext().getDatabasePath(DATABASE_NAME);
+        File backupFile = new File(dbFile.getPath() + ".backup");
+        deleteFiles(dbFile, backupFile);
+
+        final BenchmarkDb db = new BenchmarkDb(context);
+        final BenchmarkModel model = new BenchmarkModel(db);
+        DbMetrics metrics = new DbMetrics();
+        db.setMetrics(metrics);
+        StringBuilder json = new StringBuilder("{\"rows\":").append(rows).append(",\"results\":[");
+        try {
+            Random random = new Random(42);
+
+            //single-row inserts
+            long start = System.nanoTime();
+            for (int i = 0; i < rows; i++) {
+                db.insert(BenchmarkModel.TABLE_NAME, values(random));
+            }
+            appendResult(json, "insert", rows, System.nanoTime() - start);
+
+            //bulk inserts
+            for (int batchSize : BATCH_SIZES) {
+                ContentValues[] batch = new ContentValues[batchSize];
+                for (int i = 0; i < batchSize; i++) batch[i] = values(random);
+                int batches = Math.max(1, rows / batchSize);
+                start = System.nanoTime();
+                for (int i = 0; i < batches; i++) {
+                    db.bulkInsert(BenchmarkModel.TABLE_NAME, batch);
+                }
+                appendResult(json, "bulkInsert_" + batchSize, (long) batches * batchSize, System.nanoTime() - start);
+            }
+
+            //query and hydration of objects
+            String limit = String.valueOf(rows);
+            int hydrated = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < 10; i++) {
+                hydrated += model.queryAsList(null, null, null, null, null, BenchmarkModel.COLUMN_ID, limit).size();
+            }
+            appendResult(json, "queryAsList", hydrated, System.nanoTime() - start);
+
+            //conversion of objects
+            ArrayList<BenchmarkItem> items = model.queryAsList(null, null, null, null, null, BenchmarkModel.COLUMN_ID, limit);
+            String[] columns = model.columns();
+            start = System.nanoTime();
+            for (BenchmarkItem item : items) {
+                item.toContentValues(columns);
+            }
+            appendResult(json, "toContentValues", items.size(), System.nanoTime() - start);
+
+            //concurrent mix, one write for every three reads
+            final int opsPerThread = Math.max(1, rows / THREADS);
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            ArrayList<Future<Void>> futures = new ArrayList<>();
+            start = System.nanoTime();
+            for (int t = 0; t < THREADS; t++) {
+                final long seed = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        Random threadRandom = new Random(seed);
+                        for (int i = 0; i < opsPerThread; i++) {
+                            if (i % 4 == 0) {
+                                db.insert(BenchmarkModel.TABLE_NAME, values(threadRandom));
+                            } else {
+                                model.queryAsList(null, BenchmarkModel.COLUMN_VALUE + " > ?",
+                                        new String[]{String.valueOf(threadRandom.nextInt(1000))}, null, null,
+                                        BenchmarkModel.COLUMN_ID, "20");
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) future.get();
+            appendResult(json, "mixed_" + THREADS + "_threads", (long) opsPerThread * THREADS, System.nanoTime() - start);
+            executor.shutdown();
+
+            //export and import, operations are bytes
+            start = System.nanoTime();
+            long exported = db.exportDB(backupFile.getPath(), "benchmark", "benchmark");
+            appendResult(json, "exportDB_bytes", exported, System.nanoTime() - start);
+            start = System.nanoTime();
+            long imported = db.importDB(backupFile.getPath(), "benchmark", "benchmark");
+            appendResult(json, "importDB_bytes", imported, System.nanoTime() - start);
+        } finally {
+            db.setMetrics(null);
+            db.close();
+            deleteFiles(dbFile, backupFile);
+        }
+
+        json.setLength(json.length() - 1);
+        return json.append("],\"metrics\":").append(metrics.snapshot().toJson()).append('}').toString();
+    }
+
+    private static void appendResult(StringBuilder json, String name, long ops, long nanos) {
+        json.append("{\"name\":\"").append(name)
+                .append("\",\"ops\":").append(ops)
+                .append(",\"nanos\":").append(nanos)
+                .append(",\"opsPerSecond\":").append(nanos > 0 ? (long) (ops * 1e9 / nanos) : 0)
+                .append("},");
+    }
+
+    private static ContentValues values(Random random) {
+        ContentValues values = new ContentValues();
+        values.put(BenchmarkModel.COLUMN_NAME, "name-" + random.nextInt());
+        values.put(BenchmarkModel.COLUMN_VALUE, random.nextInt(1000));
+        values.put(BenchmarkModel.COLUMN_RATIO, random.nextDouble());
+        byte[] data = new byte[64];
+        random.nextBytes(data);
+        values.put(BenchmarkModel.COLUMN_DATA, data);
+        return values;
+    }
+
+    private static void deleteFiles(File dbFile, File backupFile) {
+        String path = dbFile.getPath();
+        for (String suffix : new String[]{"", "-journal", "-wal", "-shm"}) {
+            File file = new File(path + suffix);
+            if (file.exists() && !file.delete()) file.deleteOnExit();
+        }
+        if (backupFile.exists() && !backupFile.delete()) backupFile.deleteOnExit();
+    }
+
+    private static final class BenchmarkDb extends DbManPlus {
+        BenchmarkDb(Context context) {
+            super(context, DATABASE_NAME, 1, THREADS);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + BenchmarkModel.TABLE_NAME + " ("
+                    + BenchmarkModel.COLUMN_ID + " INTEGER PRIMARY KEY,"
+                    + BenchmarkModel.COLUMN_NAME + " TEXT,"
+                    + BenchmarkModel.COLUMN_VALUE + " INTEGER,"
+                    + BenchmarkModel.COLUMN_RATIO + " REAL,"
+                    + BenchmarkModel.COLUMN_DATA + " BLOB"
+                    + ");");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            db.execSQL("DROP TABLE IF EXISTS " + BenchmarkModel.TABLE_NAME);
+            onCreate(db);
+        }
+    }
+
+    private static final class BenchmarkModel extends DbModel<BenchmarkItem> {
+        static final String TABLE_NAME = "benchmark";
+        static final String COLUMN_ID = "_id";
+        static final String COLUMN_NAME = "name";
+        static final String COLUMN_VALUE = "value";
+        static final String COLUMN_RATIO = "ratio";
+        static final String COLUMN_DATA = "data";
+
+        BenchmarkModel(DbManPlus dbManager) {
+            super(dbManager);
+        }
+
+        @Override
+        public String getTableName() {
+            return TABLE_NAME;
+        }
+
+        @Override
+        public boolean continueInsert(ContentValues values) {
+            return true;
+        }
+
+        @Nullable
+        @Override
+        protected BenchmarkItem getModelItem() {
+            return new BenchmarkItem();
+        }
+
+        @NonNull
+        @Override
+        protected String[] getTableColumns() {
+            return new String[]{COLUMN_ID, COLUMN_NAME, COLUMN_VALUE, COLUMN_RATIO, COLUMN_DATA};
+        }
+    }
+
+    private static final class BenchmarkItem extends DbItem {
+        private long id;
+        private String name;
+        private long value;
+        private double ratio;
+        private byte[] data;
+
+        @Override
+        protected void setVal(String column, Long integerVal, Double floatingPointVal, String textVal, byte[] blobVal) {
+            switch (column) {
+                case BenchmarkModel.COLUMN_ID:
+                    if (integerVal != null) id = integerVal;
+                    break;
+                case BenchmarkModel.COLUMN_NAME:
+                    name = textVal;
+                    break;
+                case BenchmarkModel.COLUMN_VALUE:
+                    if (integerVal != null) value = integerVal;
+                    break;
+                case BenchmarkModel.COLUMN_RATIO:
+                    if (floatingPointVal != null) ratio = floatingPointVal;
+                    break;
+                case BenchmarkModel.COLUMN_DATA:
+                    data = blobVal;
+                    break;
+            }
+        }
+
+        @Nullable
+        @Override
+        protected Object getVal(String column) {
+            switch (column) {
+                case BenchmarkModel.COLUMN_ID:
+                    return id;
+                case BenchmarkModel.COLUMN_NAME:
+                    return name;
+                case BenchmarkModel.COLUMN_VALUE:
+                    return value;
+                case BenchmarkModel.COLUMN_RATIO:
+                    return ratio;
+                case BenchmarkModel.COLUMN_DATA:
+                    return data;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package com.vssh.dbmanplus;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.CancellationSignal;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous facade for DbManPlus. Every operation returns a {@link Future}.
+ * <br> Writes run one after another on a single writer thread, so callers never wait for the write lock.
+ * Reads run on a reader executor sized to the read connections of the database (see
+ * {@link DbManPlus#DbManPlus(android.content.Context, String, int, int)}).
+ * <br> Both executors have a bounded queue. Submitting to a full queue blocks the caller until there is room.
+ * <br> Cancelling a read future with {@link Future#cancel} aborts the running SQLite query (API 16+).
+ * The cursor of a cancelled query is closed.
+ */
+public class AsyncDbManPlus implements Closeable {
+    /**
+     * Default maximum number of operations queued per executor
+     */
+    public static final int DEFAULT_MAX_PENDING = 256;
+
+    private final DbManPlus mDbManager;
+    private final ThreadPoolExecutor mWriter;
+    private final ThreadPoolExecutor mReaders;
+
+    /**
+     * Create the facade with one reader thread per read connection (at least one)
+     * and {@link #DEFAULT_MAX_PENDING} queued operations per executor
+     * @param dbManager database to use
+     */
+    public AsyncDbManPlus(DbManPlus dbManager) {
+        this(dbManager, Math.max(1, dbManager.getReadConnectionCount()), DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * Create the facade and start its threads
+     * @param dbManager database to use
+     * @param readerThreads number of reader threads
+     * @param maxPending maximum number of operations queued per executor before submitting blocks
+     */
+    public AsyncDbManPlus(DbManPlus dbManager, int readerThreads, int maxPending) {
+        if (readerThreads < 1) throw new IllegalArgumentException("readerThreads must be positive");
+        if (maxPending < 1) throw new IllegalArgumentException("maxPending must be positive");
+        this.mDbManager = dbManager;
+        this.mWriter = newExecutor(1, maxPending, "DbManPlus-Writer");
+        this.mReaders = newExecutor(readerThreads, maxPending, "DbManPlus-Reader");
+    }
+
+    private static ThreadPoolExecutor newExecutor(int threads, int maxPending, final String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(maxPending), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new BlockingPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Blocks the submitting thread until the queue has room
+     */
+    private static final class BlockingPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) throw new RejectedExecutionException("AsyncDbManPlus is closed");
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+            //closed while waiting, the task would never run
+            if (executor.isShutdown() && executor.getQueue().remove(r)) {
+                throw new RejectedExecutionException("AsyncDbManPlus is closed");
+            }
+        }
+    }
+
+    /**
+     * @return the wrapped database
+     */
+    public DbManPlus getDbManager() {
+        return mDbManager;
+    }
+
+    /**
+     * Run any write on the writer thread
+     * @param write function doing the write
+     * @return future result of the write
+     */
+    public <V> Future<V> write(Callable<V> write) {
+        FutureTask<V> task = new FutureTask<>(write);
+        mWriter.execute(task);
+        return task;
+    }
+
+    /**
+     * Run any read on a reader thread. To make it cancellable, use {@link #read(CancellableRead)}.
+     * @param read function doing the read
+     * @return future result of the read
+     */
+    public <V> Future<V> read(Callable<V> read) {
+        FutureTask<V> task = new FutureTask<>(read);
+        mReaders.execute(task);
+        return task;
+    }
+
+    /**
+     * A read that can be aborted while it runs
+     */
+    public interface CancellableRead<V> {
+        /**
+         * Do the read
+         * @param cancellationSignal signal to pass to the query, null below API 16
+         * @return result of the read
+         */
+        V call(@Nullable CancellationSignal cancellationSignal) throws Exception;
+    }
+
+    /**
+     * Run any read on a reader thread. Cancelling the future cancels the signal given to the read.
+     * @param read function doing the read
+     * @return future result of the read
+     */
+    public <V> Future<V> read(CancellableRead<V> read) {
+        ReadTask<V> task = new ReadTask<>(read);
+        mReaders.execute(task);
+        return task;
+    }
+
+    /**
+     * Insert a row (see {@link DbManPlus#insert})
+     * @return future row ID. If the insert throws, e.g. on a constraint violation, the future fails with an
+     *          {@link ExecutionException} that wraps the {@link SQLException}.
+     */
+    public Future<Long> insert(String tableName, ContentValues initialValues) {
+        return insertWithOnConflict(tableName, initialValues, SQLiteDatabase.CONFLICT_NONE);
+    }
+
+    /**
+     * Insert a row (see {@link DbManPlus#insertWithOnConflict})
+     * @return future row ID, -1 if the row was not inserted because of the conflict algorithm. If the insert
+     *          throws, the future fails with an {@link ExecutionException} that wraps the
+     *          {@link SQLException}.
+     */
+    public Future<Long> insertWithOnConflict(final String tableName, final ContentValues initialValues, final int conflictAlgorithm) {
+        return write(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return mDbManager.insertWithOnConflict(tableName, initialValues, conflictAlgorithm);
+            }
+        });
+    }
+
+    /**
+     * Insert rows in one transaction (see {@link DbManPlus#bulkInsert(String, ContentValues[])})
+     * @return future number of inserted rows. If the insert throws, no row is inserted and the future fails
+     *          with an {@link ExecutionException} that wraps the {@link SQLException}.
+     */
+    public Future<Integer> bulkInsert(final String tableName, final ContentValues[] values) {
+        return write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mDbManager.bulkInsert(tableName, values);
+            }
+        });
+    }
+
+    /**
+     * Update rows (see {@link DbManPlus#update})
+     * @return future number of updated rows
+     */
+    public Future<Integer> update(final String tableName, final ContentValues values, final String selection, final String[] selectionArgs) {
+        return write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mDbManager.update(tableName, values, selection, selectionArgs);
+            }
+        });
+    }
+
+    /**
+     * Delete rows (see {@link DbManPlus#delete})
+     * @return future number of deleted rows
+     */
+    public Future<Integer> delete(final String tableName, final String selection, final String[] selectionArgs) {
+        return write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mDbManager.delete(tableName, selection, selectionArgs);
+            }
+        });
+    }
+
+    /**
+     * Run a transaction on the writer thread (see {@link DbManPlus#doTransaction})
+     * @return future true if the transaction was committed
+     */
+    public Future<Boolean> doTransaction(final Callable<Boolean> transactionFunc) {
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return mDbManager.doTransaction(transactionFunc);
+            }
+        });
+    }
+
+    /**
+     * Query the database (see {@link DbManPlus#query(String, String[], String, String[], String, String, String, String)}).
+     * Close the cursor after use.
+     * @return future cursor
+     */
+    public Future<Cursor> query(final String tableNames, final String[] projection, final String selection,
+                                final String[] selectionArgs, final String groupBy, final String having,
+                                final String sortOrder, final String limit) {
+        return read(new CancellableRead<Cursor>() {
+            @Override
+            public Cursor call(@Nullable CancellationSignal cancellationSignal) {
+                if (cancellationSignal == null) {
+                    return fill(mDbManager.query(tableNames, projection, selection, selectionArgs, groupBy, having,
+                            sortOrder, limit));
+                }
+                return fill(mDbManager.query(tableNames, projection, selection, selectionArgs, groupBy, having, sortOrder,
+                        limit, cancellationSignal));
+            }
+        });
+    }
+
+    /**
+     * Query the database using a raw query (see {@link DbManPlus#rawQuery(String, String[])}).
+     * Close the cursor after use.
+     * @return future cursor
+     */
+    public Future<Cursor> rawQuery(final String sql, final String[] selectionArgs) {
+        return read(new CancellableRead<Cursor>() {
+            @Override
+            public Cursor call(@Nullable CancellationSignal cancellationSignal) {
+                if (cancellationSignal == null) return fill(mDbManager.rawQuery(sql, selectionArgs));
+                return fill(mDbManager.rawQuery(sql, selectionArgs, cancellationSignal));
+            }
+        });
+    }
+
+    /**
+     * Run the query of a cursor on the reader thread. Cursors are lazy, and would otherwise run their query on the
+     * thread that first reads them, after the future has completed and can no longer be cancelled.
+     * @param cursor cursor returned by a query
+     * @return the same cursor, with its first window filled
+     */
+    private static Cursor fill(Cursor cursor) {
+        try {
+            cursor.getCount();
+            return cursor;
+        } catch (RuntimeException e) {
+            cursor.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Query a table as a list of objects (see {@link DbModel#queryAsList})
+     * @param model model of the table
+     * @return future list of objects
+     */
+    public <T extends DbItem> Future<ArrayList<T>> queryAsList(final DbModel<T> model, final String[] projection,
+                                                               final String where, final String[] whereArgs,
+                                                               final String sortOrder) {
+        return read(new CancellableRead<ArrayList<T>>() {
+            @Override
+            public ArrayList<T> call(@Nullable CancellationSignal cancellationSignal) {
+                Cursor cursor = cancellationSignal == null
+                        ? mDbManager.query(model.getTableName(), projection, where, whereArgs, null, null, sortOrder, null)
+                        : mDbManager.query(model.getTableName(), projection, where, whereArgs, null, null, sortOrder, null,
+                        cancellationSignal);
+                try {
+                    return model.cursorToList(cursor);
+                } finally {
+                    cursor.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop accepting operations. Operations already queued still run.
+     */
+    @Override
+    public void close() {
+        mWriter.shutdown();
+        mReaders.shutdown();
+    }
+
+    /**
+     * Wait until all queued operations have run after {@link #close()}
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return true if everything finished, false if the timeout elapsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!mWriter.awaitTermination(timeout, unit)) return false;
+        return mReaders.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Future of a read, cancelling it cancels its query.
+     * Results that are cursors are closed if they arrive after the future was cancelled.
+     */
+    private static final class ReadTask<V> extends FutureTask<V> {
+        private final CancellationSignal mSignal;
+
+        ReadTask(final CancellableRead<V> read) {
+            this(read, Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ? new CancellationSignal() : null);
+        }
+
+        private ReadTask(final CancellableRead<V> read, @Nullable final CancellationSignal signal) {
+            super(new Callable<V>() {
+                @Override
+                public V call() throws Exception {
+                    return read.call(signal);
+                }
+            });
+            this.mSignal = signal;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && mSignal != null) mSignal.cancel();
+            return cancelled;
+        }
+
+        @Override
+        protected void set(V v) {
+            super.set(v);
+            //nobody will read the result of a cancelled future
+            if (isCancelled() && v instanceof Cursor) ((Cursor) v).close();
+        }
+    }
+}
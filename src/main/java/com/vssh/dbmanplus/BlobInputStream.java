@@ -0,0 +1,77 @@
+package com.vssh.dbmanplus;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream over a value stored by {@link DbManPlus#writeBlob}, reading one chunk at a time.
+ * <br> Only the current chunk is held in memory. Skipping moves to the chunk of the new position without
+ * reading the chunks in between.
+ */
+final class BlobInputStream extends InputStream {
+    private final DbManPlus mDbManager;
+    private final long mId;
+    private final long mSize;
+    private final int mChunkSize;
+    private long mPosition;
+    private byte[] mChunk;
+    private int mChunkSeq = -1;
+    private boolean mClosed;
+    private final byte[] mSingle = new byte[1];
+
+    BlobInputStream(DbManPlus dbManager, long id, long size, int chunkSize) {
+        this.mDbManager = dbManager;
+        this.mId = id;
+        this.mSize = size;
+        this.mChunkSize = chunkSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(mSingle, 0, 1) == -1 ? -1 : mSingle[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (mClosed) throw new IOException("Stream closed");
+        if (offset < 0 || length < 0 || length > buffer.length - offset) throw new IndexOutOfBoundsException();
+        if (length == 0) return 0;
+        if (mPosition >= mSize) return -1;
+
+        int seq = (int) (mPosition / mChunkSize);
+        if (seq != mChunkSeq) {
+            mChunk = null;
+            byte[] chunk = mDbManager.readBlobChunk(mId, seq);
+            if (chunk == null) throw new IOException("Blob " + mId + " was deleted");
+            mChunk = chunk;
+            mChunkSeq = seq;
+        }
+        int chunkOffset = (int) (mPosition - (long) seq * mChunkSize);
+        int count = Math.min(length, mChunk.length - chunkOffset);
+        if (count <= 0) throw new IOException("Blob " + mId + " is truncated");
+        System.arraycopy(mChunk, chunkOffset, buffer, offset, count);
+        mPosition += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0) return 0;
+        long skipped = Math.min(n, mSize - mPosition);
+        mPosition += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        if (mChunk == null || mPosition >= mSize) return 0;
+        long chunkEnd = (long) mChunkSeq * mChunkSize + mChunk.length;
+        return (int) Math.max(0, chunkEnd - mPosition);
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mChunk = null;
+    }
+}
@@ -0,0 +1,190 @@
+package com.vssh.dbmanplus;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import androidx.annotation.Nullable;
+
+/**
+ * Read-only cursor over a materialized query result, served from the {@link QueryCache}.
+ */
+class CachedCursor extends AbstractCursor {
+    private final Result mResult;
+
+    CachedCursor(Result result) {
+        this.mResult = result;
+    }
+
+    @Override
+    public int getCount() {
+        return mResult.rows.length;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mResult.columns;
+    }
+
+    private Object get(int column) {
+        checkPosition();
+        return mResult.rows[mPos][column];
+    }
+
+    @Override
+    public int getType(int column) {
+        Object value = get(column);
+        if (value == null) return Cursor.FIELD_TYPE_NULL;
+        if (value instanceof Long) return Cursor.FIELD_TYPE_INTEGER;
+        if (value instanceof Double) return Cursor.FIELD_TYPE_FLOAT;
+        if (value instanceof byte[]) return Cursor.FIELD_TYPE_BLOB;
+        return Cursor.FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public String getString(int column) {
+        Object value = get(column);
+        if (value == null) return null;
+        if (value instanceof byte[]) throw new IllegalStateException("Unable to convert BLOB to string");
+        return value.toString();
+    }
+
+    @Override
+    public long getLong(int column) {
+        Object value = get(column);
+        if (value instanceof Number) return ((Number) value).longValue();
+        if (value instanceof String) {
+            try {
+                return (long) Double.parseDouble((String) value);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public double getDouble(int column) {
+        Object value = get(column);
+        if (value instanceof Number) return ((Number) value).doubleValue();
+        if (value instanceof String) {
+            try {
+                return Double.parseDouble((String) value);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        Object value = get(column);
+        if (value == null) return null;
+        //copied so that callers cannot change the cached result
+        if (value instanceof byte[]) return ((byte[]) value).clone();
+        return value.toString().getBytes();
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return get(column) == null;
+    }
+
+    /**
+     * Immutable copy of all rows of a cursor
+     */
+    static final class Result {
+        final String[] columns;
+        final Object[][] rows;
+        final long bytes;
+
+        private Result(String[] columns, Object[][] rows, long bytes) {
+            this.columns = columns;
+            this.rows = rows;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Copy all rows of a cursor
+         * @param cursor source cursor, left open
+         * @param maxBytes the copy stops once the estimated heap size exceeds this
+         * @return the rows and their estimated heap size, or null if they are larger than maxBytes
+         */
+        static @Nullable Result of(Cursor cursor, long maxBytes) {
+            String[] columns = cursor.getColumnNames();
+            Object[][] rows = new Object[Math.max(cursor.getCount(), 0)][];
+            long bytes = 64 + columns.length * 48;
+            int row = 0;
+            cursor.moveToPosition(-1);
+            while (row < rows.length && cursor.moveToNext()) {
+                Object[] values = new Object[columns.length];
+                bytes += readRow(cursor, values);
+                rows[row++] = values;
+                if (bytes > maxBytes) return null;
+            }
+            if (row < rows.length) {
+                Object[][] read = new Object[row][];
+                System.arraycopy(rows, 0, read, 0, row);
+                rows = read;
+            }
+            return new Result(columns, rows, bytes);
+        }
+
+        /**
+         * Copy the current row of a cursor
+         * @param cursor source cursor, left at its position
+         */
+        static Result ofRow(Cursor cursor) {
+            String[] columns = cursor.getColumnNames();
+            Object[] values = new Object[columns.length];
+            long bytes = 64 + columns.length * 48 + readRow(cursor, values);
+            return new Result(columns, new Object[][]{values}, bytes);
+        }
+
+        /**
+         * @return estimated heap size of the copied values
+         */
+        private static long readRow(Cursor cursor, Object[] values) {
+            long bytes = 16 + values.length * 4;
+            for (int i = 0; i < values.length; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        values[i] = cursor.getLong(i);
+                        bytes += 16;
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        values[i] = cursor.getDouble(i);
+                        bytes += 16;
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        String text = cursor.getString(i);
+                        values[i] = text;
+                        bytes += 40 + 2L * text.length();
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        byte[] blob = cursor.getBlob(i);
+                        values[i] = blob;
+                        bytes += 16 + blob.length;
+                        break;
+                    default:
+                        values[i] = null;
+                }
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package com.vssh.dbmanplus;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Chunked backup format of {@link DbManPlus#exportDBChunked}.
+ * <br> The database is split into chunks that are compressed, encrypted with AES/CBC and authenticated with
+ * HMAC-SHA256 independently, so they are processed on all cores and a corrupt chunk is found without decrypting
+ * the rest. Keys are derived from the salt and password with PBKDF2 and a random salt per backup.
+ * <pre>
+ * header: magic, version, iterations, backup salt, chunk size, database size, HMAC of the header
+ * chunk:  index, plain length, cipher length, IV, cipher text, HMAC of all previous chunk fields
+ * end:    -1, number of chunks, database size, HMAC, so a truncated backup is detected
+ * </pre>
+ */
+final class ChunkedBackup {
+    private static final byte[] MAGIC = {'D', 'B', 'M', 'P', 'B', 'A', 'K', '2'};
+    static final int MAGIC_LENGTH = MAGIC.length;
+    private static final int VERSION = 1;
+    static final int ITERATIONS = 10000;
+    /**
+     * Upper bound for the iterations of a backup, checked before the header is authenticated
+     */
+    static final int MAX_ITERATIONS = 100 * ITERATIONS;
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    static final int SALT_LENGTH = 16;
+    private static final int IV_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
+    private static final int END = -1;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private ChunkedBackup() {}
+
+    /**
+     * Check if a backup starts with the magic of this format
+     * @param header first bytes of the backup
+     * @param length number of bytes read
+     */
+    static boolean isChunked(byte[] header, int length) {
+        return length >= MAGIC.length && Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC);
+    }
+
+    static final class Keys {
+        final SecretKeySpec cipherKey;
+        final SecretKeySpec macKey;
+
+        Keys(String salt, String password, byte[] backupSalt, int iterations) throws IOException, GeneralSecurityException {
+            byte[] saltBytes = salt.getBytes("UTF-8");
+            byte[] fullSalt = Arrays.copyOf(saltBytes, saltBytes.length + backupSalt.length);
+            System.arraycopy(backupSalt, 0, fullSalt, saltBytes.length, backupSalt.length);
+            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+            byte[] key = factory.generateSecret(new PBEKeySpec(password.toCharArray(), fullSalt, iterations, 512)).getEncoded();
+            cipherKey = new SecretKeySpec(key, 0, 32, "AES");
+            macKey = new SecretKeySpec(key, 32, 32, "HmacSHA256");
+        }
+
+        Mac mac() throws GeneralSecurityException {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(macKey);
+            return mac;
+        }
+    }
+
+    /**
+     * Write a database file in this format
+     * @param snapshot consistent copy of the database
+     * @param output stream to write, not closed
+     * @return size of the database
+     */
+    static long write(File snapshot, OutputStream output, String salt, String password,
+                      @Nullable DbManPlus.BackupProgressListener listener) throws IOException, GeneralSecurityException {
+        byte[] backupSalt = new byte[SALT_LENGTH];
+        random.nextBytes(backupSalt);
+        final Keys keys = new Keys(salt, password, backupSalt, ITERATIONS);
+
+        FileInputStream in = new FileInputStream(snapshot);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, DbBackup.BUFFER_SIZE));
+        ExecutorService executor = newExecutor();
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(headerBytes);
+            header.write(MAGIC);
+            header.writeInt(VERSION);
+            header.writeInt(ITERATIONS);
+            header.write(backupSalt);
+            header.writeInt(CHUNK_SIZE);
+            header.writeLong(size);
+            out.write(headerBytes.toByteArray());
+            out.write(keys.mac().doFinal(headerBytes.toByteArray()));
+
+            int window = threadCount() * 2;
+            ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+            int chunks = 0;
+            long position = 0;
+            long done = 0;
+            while (position < size) {
+                final int index = chunks++;
+                final ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, size - position));
+                while (chunk.hasRemaining()) {
+                    int read = channel.read(chunk, position + chunk.position());
+                    if (read == -1) throw new EOFException("Snapshot shrank while reading");
+                }
+                position += chunk.capacity();
+                pending.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return encodeChunk(keys, index, chunk.array());
+                    }
+                }));
+                if (pending.size() >= window) {
+                    done += writeChunk(out, pending.poll());
+                    if (listener != null) listener.onProgress(done, size);
+                }
+            }
+            while (!pending.isEmpty()) {
+                done += writeChunk(out, pending.poll());
+                if (listener != null) listener.onProgress(done, size);
+            }
+
+            ByteArrayOutputStream endBytes = new ByteArrayOutputStream();
+            DataOutputStream end = new DataOutputStream(endBytes);
+            end.writeInt(END);
+            end.writeInt(chunks);
+            end.writeLong(size);
+            out.write(endBytes.toByteArray());
+            out.write(keys.mac().doFinal(endBytes.toByteArray()));
+            out.flush();
+            return size;
+        } finally {
+            executor.shutdownNow();
+            in.close();
+        }
+    }
+
+    /**
+     * @return plain length of the written chunk
+     */
+    private static int writeChunk(DataOutputStream out, Future<byte[]> future) throws IOException, GeneralSecurityException {
+        byte[] record = await(future);
+        out.write(record);
+        //plain length follows the index
+        return ByteBuffer.wrap(record, 4, 4).getInt();
+    }
+
+    private static byte[] encodeChunk(Keys keys, int index, byte[] plain) throws IOException, GeneralSecurityException {
+        Deflater deflater = new Deflater();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(plain.length / 2);
+        try {
+            deflater.setInput(plain);
+            deflater.finish();
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                compressed.write(buffer, 0, length);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, keys.cipherKey, new IvParameterSpec(iv));
+        byte[] cipherText = cipher.doFinal(compressed.toByteArray());
+
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(cipherText.length + 64);
+        DataOutputStream record = new DataOutputStream(recordBytes);
+        record.writeInt(index);
+        record.writeInt(plain.length);
+        record.writeInt(cipherText.length);
+        record.write(iv);
+        record.write(cipherText);
+        record.write(keys.mac().doFinal(recordBytes.toByteArray()));
+        return recordBytes.toByteArray();
+    }
+
+    /**
+     * Restore a backup in this format
+     * @param input stream of the backup, starting at the magic. Not closed.
+     * @param target plain database file to write
+     * @return size of the database
+     * @throws IOException also if the password is wrong or the backup is corrupt or truncated
+     */
+    static long read(InputStream input, String salt, String password, File target,
+                     @Nullable DbManPlus.BackupProgressListener listener)
+            throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+        try {
+            return readChunks(input, salt, password, target, listener);
+        } catch (EOFException e) {
+            throw new IOException("Backup is truncated", e);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+            throw e;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Backup cannot be decrypted", e);
+        }
+    }
+
+    private static long readChunks(InputStream input, String salt, String password, File target,
+                                   @Nullable DbManPlus.BackupProgressListener listener) throws IOException, GeneralSecurityException {
+        DataInputStream in = new DataInputStream(input);
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a chunked backup");
+        header.write(magic);
+        int version = in.readInt();
+        if (version != VERSION) throw new IOException("Unsupported backup version " + version);
+        header.writeInt(version);
+        int iterations = in.readInt();
+        //the header is not authenticated yet, so the key derivation must not trust it
+        if (iterations < 1 || iterations > MAX_ITERATIONS) throw new IOException("Corrupt backup header");
+        header.writeInt(iterations);
+        byte[] backupSalt = new byte[SALT_LENGTH];
+        in.readFully(backupSalt);
+        header.write(backupSalt);
+        final int chunkSize = in.readInt();
+        header.writeInt(chunkSize);
+        final long size = in.readLong();
+        header.writeLong(size);
+        if (chunkSize <= 0 || size < 0) throw new IOException("Corrupt backup header");
+
+        final Keys keys = new Keys(salt, password, backupSalt, iterations);
+        verify(keys.mac().doFinal(headerBytes.toByteArray()), in, "Wrong password or corrupt backup header");
+
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        ExecutorService executor = newExecutor();
+        try {
+            final FileChannel out = file.getChannel();
+            int window = threadCount() * 2;
+            ArrayDeque<Future<Integer>> pending = new ArrayDeque<>();
+            int chunks = 0;
+            long done = 0;
+            while (true) {
+                int index = in.readInt();
+                if (index == END) break;
+                if (index != chunks) throw new IOException("Chunk " + chunks + " is missing");
+                chunks++;
+
+                int plainLength = in.readInt();
+                int cipherLength = in.readInt();
+                if (plainLength < 0 || plainLength > chunkSize || cipherLength < 0 || cipherLength > chunkSize + chunkSize / 2 + 1024) {
+                    throw new IOException("Chunk " + index + " is corrupt");
+                }
+                final byte[] record = new byte[12 + IV_LENGTH + cipherLength];
+                ByteBuffer.wrap(record).putInt(index).putInt(plainLength).putInt(cipherLength);
+                in.readFully(record, 12, IV_LENGTH + cipherLength);
+                final byte[] mac = new byte[MAC_LENGTH];
+                in.readFully(mac);
+
+                pending.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return decodeChunk(keys, record, mac, chunkSize, out);
+                    }
+                }));
+                if (pending.size() >= window) {
+                    done += await(pending.poll());
+                    if (listener != null) listener.onProgress(done, size);
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                done += await(pending.poll());
+                if (listener != null) listener.onProgress(done, size);
+            }
+
+            ByteArrayOutputStream endBytes = new ByteArrayOutputStream();
+            DataOutputStream end = new DataOutputStream(endBytes);
+            end.writeInt(END);
+            int chunkCount = in.readInt();
+            end.writeInt(chunkCount);
+            long endSize = in.readLong();
+            end.writeLong(endSize);
+            verify(keys.mac().doFinal(endBytes.toByteArray()), in, "Backup end record is corrupt");
+            if (chunkCount != chunks || endSize != size || done != size) throw new IOException("Backup is incomplete");
+
+            out.truncate(size);
+            return size;
+        } finally {
+            executor.shutdownNow();
+            file.close();
+        }
+    }
+
+    /**
+     * Verify, decrypt and decompress a chunk and write it at its position
+     * @return plain length of the chunk
+     */
+    private static int decodeChunk(Keys keys, byte[] record, byte[] mac, int chunkSize, FileChannel out)
+            throws IOException, GeneralSecurityException {
+        ByteBuffer fields = ByteBuffer.wrap(record);
+        int index = fields.getInt();
+        int plainLength = fields.getInt();
+        int cipherLength = fields.getInt();
+        if (!MessageDigest.isEqual(keys.mac().doFinal(record), mac)) throw new IOException("Chunk " + index + " is corrupt");
+
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.DECRYPT_MODE, keys.cipherKey, new IvParameterSpec(record, 12, IV_LENGTH));
+        byte[] compressed = cipher.doFinal(record, 12 + IV_LENGTH, cipherLength);
+
+        byte[] plain = new byte[plainLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int length = 0;
+            while (length < plainLength && !inflater.finished()) {
+                int inflated = inflater.inflate(plain, length, plainLength - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                length += inflated;
+            }
+            if (length != plainLength || !inflater.finished()) throw new IOException("Chunk " + index + " is corrupt");
+        } catch (DataFormatException e) {
+            throw new IOException("Chunk " + index + " is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(plain);
+        long position = (long) index * chunkSize;
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+        return plainLength;
+    }
+
+    /**
+     * Encrypt and authenticate a record like a chunk, for the other files of a backup
+     * @param associated authenticated with the record but not stored in it, like its position
+     * @return IV, cipher text and HMAC of the associated data, IV and cipher text
+     */
+    static byte[] seal(Keys keys, byte[] associated, byte[] plain) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, keys.cipherKey, new IvParameterSpec(iv));
+        byte[] cipherText = cipher.doFinal(plain);
+
+        int macOffset = IV_LENGTH + cipherText.length;
+        byte[] sealed = Arrays.copyOf(iv, macOffset + MAC_LENGTH);
+        System.arraycopy(cipherText, 0, sealed, IV_LENGTH, cipherText.length);
+        Mac mac = keys.mac();
+        mac.update(associated);
+        mac.update(sealed, 0, macOffset);
+        mac.doFinal(sealed, macOffset);
+        return sealed;
+    }
+
+    /**
+     * Verify and decrypt a record of {@link #seal}
+     * @throws IOException if the record or its associated data changed, or the keys are wrong
+     */
+    static byte[] unseal(Keys keys, byte[] associated, byte[] sealed) throws IOException, GeneralSecurityException {
+        int macOffset = sealed.length - MAC_LENGTH;
+        if (macOffset < IV_LENGTH) throw new IOException("Record is corrupt");
+        Mac mac = keys.mac();
+        mac.update(associated);
+        mac.update(sealed, 0, macOffset);
+        if (!MessageDigest.isEqual(mac.doFinal(), Arrays.copyOfRange(sealed, macOffset, sealed.length))) {
+            throw new IOException("Record is corrupt");
+        }
+
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.DECRYPT_MODE, keys.cipherKey, new IvParameterSpec(sealed, 0, IV_LENGTH));
+        return cipher.doFinal(sealed, IV_LENGTH, macOffset - IV_LENGTH);
+    }
+
+    private static void verify(byte[] expected, DataInputStream in, String message) throws IOException {
+        byte[] mac = new byte[MAC_LENGTH];
+        in.readFully(mac);
+        if (!MessageDigest.isEqual(expected, mac)) throw new IOException(message);
+    }
+
+    private static <V> V await(Future<V> future) throws IOException, GeneralSecurityException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Backup interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof GeneralSecurityException) throw (GeneralSecurityException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private static int threadCount() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    private static ExecutorService newExecutor() {
+        return Executors.newFixedThreadPool(threadCount(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DbManPlus-Backup");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
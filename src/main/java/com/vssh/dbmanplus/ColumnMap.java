@@ -0,0 +1,83 @@
+package com.vssh.dbmanplus;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+/**
+ * Where the columns of a model are in a cursor, resolved once per cursor.
+ * <br> Hydration only visits the columns the cursor actually has, so a narrow projection costs no lookups
+ * for the columns it left out.
+ */
+final class ColumnMap {
+    /**
+     * Columns of the model, ordinals refer to this array
+     */
+    final String[] columns;
+    /**
+     * Cursor index of each column, -1 if the cursor does not have it
+     */
+    final int[] indices;
+    /**
+     * Ordinals of the columns the cursor has
+     */
+    final int[] ordinals;
+    /**
+     * Names of the columns the cursor has
+     */
+    final String[] present;
+
+    private ColumnMap(String[] columns, int[] indices) {
+        this.columns = columns;
+        this.indices = indices;
+        int count = 0;
+        for (int index : indices) {
+            if (index != -1) count++;
+        }
+        this.ordinals = new int[count];
+        this.present = new String[count];
+        for (int i = 0, j = 0; i < indices.length; i++) {
+            if (indices[i] == -1) continue;
+            ordinals[j] = i;
+            present[j++] = columns[i];
+        }
+    }
+
+    static ColumnMap of(Cursor cursor, String[] columns) {
+        return new ColumnMap(columns, DbItem.columnIndices(cursor, columns));
+    }
+
+    /**
+     * Map of a cursor that holds only one column of the model, at index 0
+     */
+    static ColumnMap single(String[] columns, int ordinal) {
+        int[] indices = new int[columns.length];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = i == ordinal ? 0 : -1;
+        }
+        return new ColumnMap(columns, indices);
+    }
+
+    /**
+     * Cursor passed to {@link DbItem#fromCursor(Cursor, String[])} by {@link DbItem#readFrom}, so that the
+     * default implementation finds the resolved indices without any state in the item
+     */
+    static final class Reading extends CursorWrapper {
+        final ColumnMap map;
+
+        Reading(Cursor cursor, ColumnMap map) {
+            super(cursor);
+            this.map = map;
+        }
+    }
+
+    /**
+     * @param optional columns that may be missing, may be null
+     * @return true if the cursor has every column of the model that is not optional
+     */
+    boolean hasAll(boolean[] optional) {
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] == -1 && (optional == null || !optional[i])) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,239 @@
+package com.vssh.dbmanplus;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Consistent snapshots of a live database for {@link DbManPlus#exportDB}.
+ * <br> With SQLite 3.27+ the snapshot is written by VACUUM INTO on a separate read-only connection, so writers
+ * are not blocked at all in write-ahead logging mode. Older versions copy the database file in chunks, each
+ * under a short write transaction, and start over if anything was committed in between. Writers are never
+ * blocked for the whole copy: if the database keeps changing, the snapshot fails after {@link #MAX_ATTEMPTS}.
+ */
+final class DbBackup {
+    private static final String TAG = "DbBackup";
+
+    static final int BUFFER_SIZE = 256 * 1024;
+    private static final long COPY_CHUNK = 1024 * 1024;
+    private static final int MAX_ATTEMPTS = 16;
+    private static final long PAUSE_MS = 50;
+    private static final long MAX_PAUSE_MS = 1000;
+
+    private DbBackup() {}
+
+    /**
+     * Key of the encrypted backup format of {@link DbManPlus#exportDB}
+     */
+    static SecretKeySpec legacyKey(String salt, String password) throws IOException, NoSuchAlgorithmException {
+        byte[] key = (salt + password).getBytes("UTF-8");
+        MessageDigest sha = MessageDigest.getInstance("SHA-1");
+        key = sha.digest(key);
+        key = Arrays.copyOf(key, 16); // use only first 128 bit
+        return new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * @return true if the SQLite library supports VACUUM INTO
+     */
+    static boolean supportsVacuumInto(SQLiteDatabase db) {
+        return versionAtLeast(DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null), 3, 27);
+    }
+
+    static boolean versionAtLeast(String version, int major, int minor) {
+        String[] parts = version.split("\\.");
+        try {
+            int actualMajor = Integer.parseInt(parts[0]);
+            int actualMinor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+            return actualMajor > major || (actualMajor == major && actualMinor >= minor);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Write a consistent copy of the database to a file
+     * @param db open writable connection of the database, not in a transaction
+     * @param owner configures the separate connection of VACUUM INTO
+     * @param target file to write, replaced if it exists
+     * @param preserveLayout true to copy the pages as they are in the database file. Otherwise VACUUM INTO
+     *            may be used, which writes a compacted file.
+     * @throws IOException also if the database kept changing during every attempt of the copy
+     */
+    static void snapshot(SQLiteDatabase db, DbManPlus owner, File target, boolean preserveLayout) throws IOException {
+        if (target.exists() && !target.delete()) throw new IOException("Cannot replace " + target);
+        if (!preserveLayout && supportsVacuumInto(db)) {
+            try {
+                vacuumInto(owner, db.getPath(), target);
+                return;
+            } catch (SQLException e) {
+                Log.w(TAG, "VACUUM INTO failed, copying pages", e);
+                if (target.exists() && !target.delete()) throw new IOException("Cannot replace " + target);
+            }
+        }
+        copyPages(db, new File(db.getPath()), target);
+    }
+
+    private static void vacuumInto(DbManPlus owner, String dbPath, File target) {
+        SQLiteDatabase reader = owner.openReadOnly(dbPath);
+        try {
+            reader.execSQL("VACUUM INTO ?", new Object[]{target.getPath()});
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Copy the database file in chunks. Each chunk is copied under a short write transaction, so other
+     * writers only wait for one chunk. If a write was committed between chunks the copy starts over after a
+     * growing pause, and fails after {@link #MAX_ATTEMPTS} rather than holding the write lock for the whole copy.
+     */
+    private static void copyPages(SQLiteDatabase db, File source, File target) throws IOException {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            if (attempt > 0) pause(attempt);
+            //read before the checkpoint, so that a write committed after it restarts the copy
+            String version = primaryChangeVersion(db);
+            //committed pages in the WAL must be in the database file before it is copied
+            if (isWal(db) && !checkpoint(db)) {
+                //readers still use older frames
+                continue;
+            }
+
+            FileInputStream in = new FileInputStream(source);
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                if (copyChunks(db, in.getChannel(), out.getChannel(), version)) return;
+            } finally {
+                in.close();
+                out.close();
+            }
+            Log.d(TAG, "database changed during copy, restarting");
+        }
+        throw new IOException("Could not take a consistent snapshot of " + source + ", it kept changing during "
+                + MAX_ATTEMPTS + " attempts");
+    }
+
+    /**
+     * @return true if the copy is consistent
+     */
+    private static boolean copyChunks(SQLiteDatabase db, FileChannel in, FileChannel out, String version)
+            throws IOException {
+        long position = 0;
+        while (true) {
+            db.beginTransactionNonExclusive();
+            try {
+                if (!version.equals(changeVersion(db))) return false;
+                long size = in.size();
+                if (position >= size) {
+                    out.truncate(size);
+                    return true;
+                }
+                long end = Math.min(size, position + COPY_CHUNK);
+                while (position < end) {
+                    position += in.transferTo(position, end - position, out);
+                }
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Wait before the next attempt, doubling up to {@link #MAX_PAUSE_MS}, so that a burst of writes can finish
+     */
+    private static void pause(int attempt) throws InterruptedIOException {
+        try {
+            Thread.sleep(Math.min(MAX_PAUSE_MS, PAUSE_MS << Math.min(attempt - 1, 5)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("snapshot interrupted");
+        }
+    }
+
+    private static boolean isWal(SQLiteDatabase db) {
+        return "wal".equalsIgnoreCase(DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null));
+    }
+
+    /**
+     * @return true if all frames of the WAL were written to the database file
+     */
+    private static boolean checkpoint(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null);
+        try {
+            //busy, frames in WAL, frames checkpointed
+            return cursor.moveToFirst() && cursor.getInt(0) == 0 && cursor.getInt(1) == cursor.getInt(2);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * {@link #changeVersion} of the primary connection. Outside a transaction, reads may run on another
+     * connection of the WAL pool, and the versions of different connections never match.
+     */
+    private static String primaryChangeVersion(SQLiteDatabase db) {
+        db.beginTransactionNonExclusive();
+        try {
+            return changeVersion(db);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Value that changes whenever a write is committed, by this connection or another one
+     */
+    private static String changeVersion(SQLiteDatabase db) {
+        String version = String.valueOf(DatabaseUtils.longForQuery(db, "SELECT total_changes()", null));
+        try {
+            //changes by other connections, SQLite 3.8.4+
+            version += ":" + DatabaseUtils.longForQuery(db, "PRAGMA data_version", null);
+        } catch (SQLiteException e) {
+            //older SQLite, only changes through this connection are seen
+        }
+        return version;
+    }
+
+    /**
+     * Stream a file through large buffers
+     * @param source file to read
+     * @param out stream to write, not closed
+     * @return number of bytes copied
+     */
+    static long copy(File source, OutputStream out, @Nullable DbManPlus.BackupProgressListener progress) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileChannel channel = in.getChannel();
+            long total = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long transferred = 0;
+            int read;
+            while ((read = channel.read(buffer)) != -1) {
+                out.write(buffer.array(), 0, read);
+                buffer.clear();
+                transferred += read;
+                if (progress != null) progress.onProgress(transferred, total);
+            }
+            return transferred;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -10,6 +10,8 @@ import android.database.CursorWrapper;
  */
 class DbCursor extends CursorWrapper {
     private DbManPlus mDbManager;
+    private boolean mClosed;
+
     /**
      * Creates a cursor wrapper.
      *
@@ -23,6 +25,8 @@ class DbCursor extends CursorWrapper {
     @Override
     public void close() {
         super.close();
+        if (mClosed) return;
+        mClosed = true;
         mDbManager.close();
     }
 }
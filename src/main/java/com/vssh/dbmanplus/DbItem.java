@@ -2,6 +2,7 @@ package com.vssh.dbmanplus;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteProgram;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
@@ -46,29 +47,180 @@ public abstract class DbItem {
         return values;
     }
 
+    /**
+     * Bind the values of this item straight into a compiled statement, without building {@link ContentValues}.
+     * <br> The value of columns[i] goes to bind index offset + i + 1. Override to bind fields directly, e.g.
+     * {@code program.bindLong(offset + 1, id)}, which avoids boxing as well.
+     * <br> The default implementation binds the values returned by {@link #getVal} if {@link #canBindFromGetVal}
+     * returns true. It returns false if that is not the case, or if a value is {@link #UNCHANGED} or of an unknown
+     * type, in which case the caller falls back to {@link #toContentValues}.
+     * @param program statement to bind to
+     * @param columns columns in bind order
+     * @param offset number of bind arguments before the first column
+     * @return true if all columns were bound
+     */
+    protected boolean bindTo(SQLiteProgram program, String[] columns, int offset) {
+        if (!canBindFromGetVal()) return false;
+
+        for (int i = 0; i < columns.length; i++) {
+            Object val = getVal(columns[i]);
+            int index = offset + i + 1;
+
+            if (UNCHANGED.equals(val))
+                return false;
+
+            if (val == null)
+                program.bindNull(index);
+            else if (val instanceof Long || val instanceof Integer || val instanceof Short || val instanceof Byte)
+                program.bindLong(index, ((Number) val).longValue());
+            else if (val instanceof Double || val instanceof Float)
+                program.bindDouble(index, ((Number) val).doubleValue());
+            else if (val instanceof String)
+                program.bindString(index, (String) val);
+            else if (val instanceof Boolean)
+                program.bindLong(index, (Boolean) val ? 1 : 0);
+            else if (val instanceof byte[])
+                program.bindBlob(index, (byte[]) val);
+            else
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Return true to let the default {@link #bindTo} bind the values of {@link #getVal} directly. Only do so if
+     * {@link #toContentValues} is not overridden, or returns the same values, since it is then skipped.
+     * @return false by default, so items keep going through {@link #toContentValues}
+     */
+    protected boolean canBindFromGetVal() {
+        return false;
+    }
+
     protected void fromCursor(Cursor cursor, String[] columns) {
-        for(String column : columns) {
-            int index = cursor.getColumnIndex(column);
-            if(index != -1) {
-                int type = cursor.getType(index);
-                switch (type) {
-                    case Cursor.FIELD_TYPE_INTEGER:
-                        setVal(column, cursor.getLong(index), null, null, null);
-                        break;
-                    case Cursor.FIELD_TYPE_FLOAT:
-                        setVal(column, null, cursor.getDouble(index), null, null);
-                        break;
-                    case Cursor.FIELD_TYPE_STRING:
-                        setVal(column, null, null, cursor.getString(index), null);
-                        break;
-                    case Cursor.FIELD_TYPE_BLOB:
-                        setVal(column, null, null, null, cursor.getBlob(index));
-                        break;
-                    default:
-                        setVal(column, null, null, null, null);
-                }
+        if (cursor instanceof ColumnMap.Reading) {
+            ColumnMap.Reading reading = (ColumnMap.Reading) cursor;
+            //called from readFrom, the indices are already resolved
+            if (columns == reading.map.present) {
+                fromCursor(reading.getWrappedCursor(), reading.map.columns, reading.map.indices);
+                return;
             }
         }
+        fromCursor(cursor, columns, columnIndices(cursor, columns));
+    }
+
+    /**
+     * Read the current row of a cursor, with the column indices already resolved.
+     * <br> Each value is offered to the primitive setter for its type ({@link #setLong}, {@link #setDouble},
+     * {@link #setString}, {@link #setBlob}, {@link #setNull}) with the ordinal of the column in columns.
+     * If the setter does not handle it, the value is passed to {@link #setVal} by column name.
+     * @param cursor cursor positioned on the row
+     * @param columns columns to read
+     * @param indices cursor index of each column, -1 if the cursor does not have it (see {@link #columnIndices})
+     */
+    protected void fromCursor(Cursor cursor, String[] columns, int[] indices) {
+        for (int i = 0; i < columns.length; i++) {
+            if (indices[i] != -1) readColumn(cursor, columns, i, indices[i]);
+        }
+    }
+
+    /**
+     * Read one column of the current row through the primitive setter for its type, or {@link #setVal}
+     */
+    private void readColumn(Cursor cursor, String[] columns, int ordinal, int index) {
+        switch (cursor.getType(index)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                long integerVal = cursor.getLong(index);
+                if (!setLong(ordinal, integerVal)) setVal(columns[ordinal], integerVal, null, null, null);
+                break;
+            case Cursor.FIELD_TYPE_FLOAT:
+                double floatingPointVal = cursor.getDouble(index);
+                if (!setDouble(ordinal, floatingPointVal)) setVal(columns[ordinal], null, floatingPointVal, null, null);
+                break;
+            case Cursor.FIELD_TYPE_STRING:
+                String textVal = cursor.getString(index);
+                if (!setString(ordinal, textVal)) setVal(columns[ordinal], null, null, textVal, null);
+                break;
+            case Cursor.FIELD_TYPE_BLOB:
+                byte[] blobVal = cursor.getBlob(index);
+                if (!setBlob(ordinal, blobVal)) setVal(columns[ordinal], null, null, null, blobVal);
+                break;
+            default:
+                if (!setNull(ordinal)) setVal(columns[ordinal], null, null, null, null);
+        }
+    }
+
+    /**
+     * Set an integer column without boxing
+     * @param ordinal position of the column in the columns of the model
+     * @param value column value
+     * @return true if handled, false to pass the value on to {@link #setVal}
+     */
+    protected boolean setLong(int ordinal, long value) {
+        return false;
+    }
+
+    /**
+     * Set a floating point column without boxing
+     * @param ordinal position of the column in the columns of the model
+     * @param value column value
+     * @return true if handled, false to pass the value on to {@link #setVal}
+     */
+    protected boolean setDouble(int ordinal, double value) {
+        return false;
+    }
+
+    /**
+     * Set a text column
+     * @param ordinal position of the column in the columns of the model
+     * @param value column value
+     * @return true if handled, false to pass the value on to {@link #setVal}
+     */
+    protected boolean setString(int ordinal, String value) {
+        return false;
+    }
+
+    /**
+     * Set a blob column
+     * @param ordinal position of the column in the columns of the model
+     * @param value column value
+     * @return true if handled, false to pass the value on to {@link #setVal}
+     */
+    protected boolean setBlob(int ordinal, byte[] value) {
+        return false;
+    }
+
+    /**
+     * Set a column that is NULL in the row
+     * @param ordinal position of the column in the columns of the model
+     * @return true if handled, false to pass it on to {@link #setVal}
+     */
+    protected boolean setNull(int ordinal) {
+        return false;
+    }
+
+    /**
+     * Resolve the cursor index of each column. Do this once per cursor, not per row.
+     * @param cursor the cursor
+     * @param columns column names
+     * @return index of each column in the cursor, -1 if it is missing
+     */
+    public static int[] columnIndices(Cursor cursor, String[] columns) {
+        int[] indices = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indices[i] = cursor.getColumnIndex(columns[i]);
+        }
+        return indices;
+    }
+
+    /**
+     * Read the current row, visiting only the columns the cursor has.
+     * <br> A subclass that overrides {@link #fromCursor(Cursor, String[])} gets the names of those columns, one
+     * that overrides {@link #fromCursor(Cursor, String[], int[])} gets the resolved indices. The map travels
+     * with the cursor argument from one to the other, so no method lookup is needed to tell which is overridden
+     * and the item holds no state while it reads.
+     */
+    final void readFrom(Cursor cursor, ColumnMap map) {
+        fromCursor(new ColumnMap.Reading(cursor, map), map.present);
     }
 
     private static class Unchanged {}
@@ -11,32 +11,72 @@ package com.vssh.dbmanplus;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.text.TextUtils;
+import android.util.Log;
 import androidx.annotation.CallSuper;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.CipherOutputStream;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.SecretKeySpec;
 
 abstract public class DbManPlus {
+    private static final String TAG = "DbManPlus";
+
+    private static final String[] CONFLICT_VALUES = new String[]
+            {"", " OR ROLLBACK ", " OR ABORT ", " OR FAIL ", " OR IGNORE ", " OR REPLACE "};
+    /**
+     * Default limit of bound arguments per statement of SQLite before 3.32
+     */
+    private static final int MAX_BIND_ARGS = 999;
+    /**
+     * Key sets larger than this go through a temporary key table instead of IN lists
+     */
+    private static final int KEY_TABLE_THRESHOLD = 8 * MAX_BIND_ARGS;
+    private static final String KEY_TABLE = "_dbmp_keys";
+    static final String BLOB_TABLE = "_dbmp_blobs";
+    static final String BLOB_CHUNK_TABLE = "_dbmp_blob_chunks";
+    private static final String BLOB_SIZE = "size";
+    static final int BLOB_CHUNK_SIZE = 256 * 1024;
+    private static final int BLOB_CHUNKS_PER_TRANSACTION = 16;
 
     /**
      * See SQLiteOpenHelper documentation
@@ -62,11 +102,24 @@ abstract public class DbManPlus {
     }
 
     /**
-     * Optional
+     * Optional. Also called on the separate read-only connections that exports and imports open on the
+     * database files, so settings like collations or foreign key enforcement apply there as well.
      */
     public void onConfigure(SQLiteDatabase db) {
     }
 
+    /**
+     * Optional. Check if an imported database can replace this one, before it is swapped in.
+     * <br> The default accepts databases up to the current version, older ones are upgraded by
+     * {@link #onUpgrade} when they are opened.
+     * @param importDb the imported database, opened read-only. Do not close it.
+     * @param version the database version of this DbManPlus
+     * @return true to use the imported database
+     */
+    protected boolean onValidateImport(SQLiteDatabase importDb, int version) {
+        return importDb.getVersion() <= version;
+    }
+
 
     /**
      * The SQLiteOpenHelper class is not actually used by your application.
@@ -75,10 +128,37 @@ abstract public class DbManPlus {
 
         DbManPlus dbManPlus;
         private AtomicInteger counter = new AtomicInteger(0);
-
-        DBSQLiteOpenHelper(Context context, String name, int version, DbManPlus dbManPlus) {
+        /**
+         * Guards opening and closing of this database file only
+         */
+        final Object lock = new Object();
+        volatile SQLiteDatabase database;
+        /**
+         * Number of concurrent readers requested for write-ahead logging, 0 if it is off
+         */
+        volatile int readConnections;
+        final StatementCache statementCache = new StatementCache(StatementCache.DEFAULT_SIZE);
+        volatile QueryCache queryCache;
+        final CopyOnWriteArrayList<TableObserver> tableObservers = new CopyOnWriteArrayList<>();
+        volatile DbMetrics metrics;
+        volatile Boolean supportsUpsert;
+        final Object blobLock = new Object();
+        volatile boolean blobTablesReady;
+        volatile long idleTimeoutMillis;
+        final AtomicInteger pins = new AtomicInteger(0);
+        /**
+         * Pending close of the idle database and its generation, guarded by {@link #lock}
+         */
+        private ScheduledFuture<?> idleClose;
+        private long idleGeneration;
+        final String path;
+        final int version;
+
+        DBSQLiteOpenHelper(Context context, String name, int version, String path, DbManPlus dbManPlus) {
             super(context, name, null, version);
             this.dbManPlus = dbManPlus;
+            this.path = path;
+            this.version = version;
         }
 
         int addConnection() {
@@ -86,8 +166,107 @@ abstract public class DbManPlus {
         }
 
         int removeConnection() {
-            if (counter.get() > 0) return counter.decrementAndGet();
-            return counter.get();
+            while (true) {
+                int count = counter.get();
+                if (count <= 0) return 0;
+                if (counter.compareAndSet(count, count - 1)) return count - 1;
+            }
+        }
+
+        /**
+         * Add a connection without locking if another connection is already held
+         * @return true if the counter was incremented
+         */
+        boolean tryAddConnection() {
+            while (true) {
+                int count = counter.get();
+                if (count <= 0) return false;
+                if (counter.compareAndSet(count, count + 1)) return true;
+            }
+        }
+
+        /**
+         * Remove a connection without locking if it is not the last one
+         * @return true if the counter was decremented
+         */
+        boolean tryRemoveConnection() {
+            while (true) {
+                int count = counter.get();
+                if (count <= 1) return false;
+                if (counter.compareAndSet(count, count - 1)) return true;
+            }
+        }
+
+        /**
+         * Open the database if needed. Call while holding {@link #lock}.
+         */
+        SQLiteDatabase openDatabase() {
+            SQLiteDatabase db = database;
+            if (db == null || !db.isOpen()) {
+                //SQLiteOpenHelper class caches the SQLiteDatabase, so this will be the same SQLiteDatabase object every time
+                db = getWritableDatabase();
+                //journal mode is reset when the connection is reopened
+                if (readConnections > 0) db.enableWriteAheadLogging();
+                database = db;
+                DbMetrics m = metrics;
+                if (m != null) m.onDatabaseOpened();
+            }
+            return db;
+        }
+
+        /**
+         * Close the database. Call while holding {@link #lock}.
+         */
+        void closeDatabase() {
+            try {
+                statementCache.clear();
+                SQLiteDatabase db = database;
+                if (db.inTransaction()) db.endTransaction();
+                if (db.isOpen()) db.close();
+                database = null;
+                DbMetrics m = metrics;
+                if (m != null) m.onDatabaseClosed();
+            } catch (IllegalStateException | NullPointerException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Close the database when the last connection was removed, right away or after the idle timeout.
+         * Call while holding {@link #lock}.
+         * @return true if the database was closed
+         */
+        boolean closeWhenIdle() {
+            long timeout = idleTimeoutMillis;
+            cancelIdleClose();
+            if (timeout <= 0) {
+                closeDatabase();
+                return true;
+            }
+            final long generation = idleGeneration;
+            idleClose = idleExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (lock) {
+                        //reopened or rescheduled in the meantime
+                        if (generation != idleGeneration || counter.get() != 0) return;
+                        idleClose = null;
+                        closeDatabase();
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+            return false;
+        }
+
+        /**
+         * Keep the database open, a connection was added. Call while holding {@link #lock}.
+         */
+        void cancelIdleClose() {
+            idleGeneration++;
+            if (idleClose != null) {
+                idleClose.cancel(false);
+                idleClose = null;
+            }
         }
 
         /*public int getCounter() {
@@ -122,11 +301,20 @@ abstract public class DbManPlus {
 
     private static final ConcurrentHashMap<String, DBSQLiteOpenHelper> dbMap = new ConcurrentHashMap<>();
 
-    private static final Object managerLockObject = new Object();
+    /**
+     * Closes idle databases, see {@link #setIdleTimeout}
+     */
+    private static final ScheduledExecutorService idleExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "DbManPlus-Idle");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
 
     private DBSQLiteOpenHelper sqLiteOpenHelper;
-    private SQLiteDatabase db;
 
     /**
      * Instantiate a new DB Helper.
@@ -137,47 +325,100 @@ abstract public class DbManPlus {
      * @param version the database version.
      */
     public DbManPlus(Context context, String name, int version) {
+        this(context, name, version, 0);
+    }
+
+    /**
+     * Instantiate a new DB Helper with write-ahead logging.
+     * <br> With write-ahead logging, Android keeps a small pool of connections next to the writable one and runs
+     * {@link #query} and {@link #rawQuery} on them, so reads no longer wait for writes. These connections are
+     * configured like the writable one. Writes stay serialized on the writable connection.
+     * <br> Reads issued inside {@link #doTransaction} keep using the writable connection, so they see the
+     * uncommitted changes of the transaction.
+     * <br> Android sizes the pool itself, readConnections is the number of reads expected to run at once
+     * (for example the reader threads of {@link AsyncDbManPlus}).
+     * <br> Write-ahead logging is set up by the first instance for a database file, later instances share it.
+     *
+     * @param context Any {@link android.content.Context} belonging to your package.
+     * @param name    The database name. This may be anything you like. Adding a file extension is not required and any file extension you would like to use is fine.
+     * @param version the database version.
+     * @param readConnections number of concurrent readers, 0 disables write-ahead logging
+     */
+    public DbManPlus(Context context, String name, int version, int readConnections) {
         String dbPath = context.getApplicationContext().getDatabasePath(name).getAbsolutePath();
-        synchronized (managerLockObject) {
-            sqLiteOpenHelper = dbMap.get(dbPath);
-            if (sqLiteOpenHelper == null) {
-                sqLiteOpenHelper = new DBSQLiteOpenHelper(context, name, version, this);
-                dbMap.put(dbPath, sqLiteOpenHelper);
+        DBSQLiteOpenHelper helper = dbMap.get(dbPath);
+        if (helper == null) {
+            DBSQLiteOpenHelper created = new DBSQLiteOpenHelper(context, name, version, dbPath, this);
+            helper = dbMap.putIfAbsent(dbPath, created);
+            if (helper == null) helper = created;
+        }
+        sqLiteOpenHelper = helper;
+
+        synchronized (helper.lock) {
+            SQLiteDatabase db = helper.openDatabase();
+            if (readConnections > 0 && helper.readConnections == 0 && db.enableWriteAheadLogging()) {
+                helper.readConnections = readConnections;
             }
-            //SQLiteOpenHelper class caches the SQLiteDatabase, so this will be the same SQLiteDatabase object every time
-            db = sqLiteOpenHelper.getWritableDatabase();
         }
     }
 
+    /**
+     * Check if reads run next to writes with write-ahead logging (see {@link #DbManPlus(Context, String, int, int)})
+     *
+     * @return true if write-ahead logging is enabled
+     */
+    public boolean isReadPoolEnabled() {
+        return sqLiteOpenHelper.readConnections > 0;
+    }
+
+    /**
+     * Get the number of concurrent readers (see {@link #DbManPlus(Context, String, int, int)})
+     *
+     * @return number of concurrent readers, 0 if write-ahead logging is not enabled
+     */
+    public int getReadConnectionCount() {
+        return sqLiteOpenHelper.readConnections;
+    }
+
     /**
      * Check if the underlying SQLiteDatabase is open
      *
      * @return whether the DB is open or not (checks for null, to prevent crashing)
      */
     public boolean isOpen() {
+        SQLiteDatabase db = sqLiteOpenHelper.database;
         return (db != null && db.isOpen());
     }
 
+    /**
+     * Check if the calling thread is inside a transaction on this database (e.g. in {@link #doTransaction})
+     *
+     * @return true if a transaction is open on this thread
+     */
+    public boolean inTransaction() {
+        SQLiteDatabase db = sqLiteOpenHelper.database;
+        return (db != null && db.isOpen() && db.inTransaction());
+    }
+
     /**
      * Lowers the DB counter by 1 for any {@link DbManPlus}s referencing the same DB on disk
-     * <br />If the new counter is 0, then the database will be closed.
+     * <br />If the new counter is 0, then the database will be closed, right away or after the idle timeout
+     * (see {@link #setIdleTimeout}).
      * <br /><br />This needs to be called before application exit.
      *
      * @return true if the underlying {@link android.database.sqlite.SQLiteDatabase} is closed (counter is 0), and false otherwise (counter > 0)
      */
     protected boolean close() {
-        synchronized (managerLockObject) {
-            int count = sqLiteOpenHelper.removeConnection();
-            if (count == 0) {
-                try {
-                    if (db.inTransaction()) db.endTransaction();
-                    if (db.isOpen()) db.close();
-                    db = null;
-                } catch (IllegalStateException | NullPointerException e) {
-                    e.printStackTrace();
-                }
-            }
-            return (count == 0);
+        DBSQLiteOpenHelper helper = sqLiteOpenHelper;
+        //other connections are still open, nothing to close
+        if (helper.tryRemoveConnection()) return false;
+
+        DbMetrics metrics = helper.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        synchronized (helper.lock) {
+            if (metrics != null) metrics.record(DbMetrics.Op.LOCK_WAIT, start);
+            int count = helper.removeConnection();
+            return count == 0 && helper.closeWhenIdle();
         }
     }
 
@@ -188,12 +429,171 @@ abstract public class DbManPlus {
      */
     @CallSuper
     protected SQLiteDatabase open() {
-        synchronized (managerLockObject) {
-            int count = sqLiteOpenHelper.addConnection();
-            if (db == null || !db.isOpen()) {
-                db = sqLiteOpenHelper.getWritableDatabase();
+        DBSQLiteOpenHelper helper = sqLiteOpenHelper;
+        DbMetrics metrics = helper.metrics;
+        //another connection is held, so the database cannot be closed under us
+        if (helper.tryAddConnection()) {
+            if (metrics != null) metrics.onConnectionAdded(helper.counter.get());
+            SQLiteDatabase db = helper.database;
+            if (db != null && db.isOpen()) return db;
+            long start = metrics != null ? System.nanoTime() : 0;
+            synchronized (helper.lock) {
+                if (metrics != null) metrics.record(DbMetrics.Op.LOCK_WAIT, start);
+                return helper.openDatabase();
+            }
+        }
+
+        long start = metrics != null ? System.nanoTime() : 0;
+        synchronized (helper.lock) {
+            if (metrics != null) metrics.record(DbMetrics.Op.LOCK_WAIT, start);
+            int count = helper.addConnection();
+            if (metrics != null) metrics.onConnectionAdded(count);
+            helper.cancelIdleClose();
+            return helper.openDatabase();
+        }
+    }
+
+    /**
+     * Keep the database open for a while after the last operation, instead of closing it right away.
+     * <br> Without a timeout, every operation after a pause reopens the database, which runs
+     * {@link #onConfigure} and {@link #onOpen} again and starts with an empty page cache. With a timeout, the
+     * database is closed on a background thread once no operation has used it for that long.
+     * <br> The timeout is shared by all instances for the same database file.
+     * @param timeoutMillis how long to keep an unused database open, 0 to close it as soon as it is unused.
+     *            Setting 0 also closes an idle database right away.
+     */
+    public void setIdleTimeout(long timeoutMillis) {
+        if (timeoutMillis < 0) throw new IllegalArgumentException("timeoutMillis must not be negative");
+        DBSQLiteOpenHelper helper = sqLiteOpenHelper;
+        synchronized (helper.lock) {
+            helper.idleTimeoutMillis = timeoutMillis;
+            SQLiteDatabase db = helper.database;
+            //apply the new timeout to a database that is already idle
+            if (helper.counter.get() == 0 && db != null && db.isOpen()) helper.closeWhenIdle();
+        }
+    }
+
+    /**
+     * Keep the database open until {@link #unpin()}, e.g. for a burst of operations.
+     * <br> Pins are counted and shared by all instances for the same database file.
+     */
+    public void pin() {
+        this.open();
+        sqLiteOpenHelper.pins.incrementAndGet();
+    }
+
+    /**
+     * Release a {@link #pin()}. The database is closed as usual once it is unused and unpinned.
+     */
+    public void unpin() {
+        AtomicInteger pins = sqLiteOpenHelper.pins;
+        while (true) {
+            int count = pins.get();
+            if (count <= 0) throw new IllegalStateException("unpin() without pin()");
+            if (pins.compareAndSet(count, count - 1)) break;
+        }
+        this.close();
+    }
+
+    /**
+     * Set how many compiled insert, update and delete statements are kept for reuse.
+     * <br> The cache is shared by all instances for the same database file.
+     * @param size maximum number of cached statements, 0 disables the cache
+     */
+    public void setStatementCacheSize(int size) {
+        sqLiteOpenHelper.statementCache.setMaxSize(size);
+    }
+
+    /**
+     * Cache the results of {@link #query} calls, up to the given estimated heap size.
+     * <br> Repeated queries with the same arguments are then served from memory. A cached result is dropped
+     * whenever a table it reads is written through this class; {@link #doTransaction} drops all results.
+     * Writes that bypass DbManPlus (e.g. on the database returned by {@link #open()}) are not seen.
+     * <br> Queries with subqueries, queries inside a transaction, results of more than a few thousand rows
+     * and {@link #rawQuery} are never cached. Neither are queries of views, of tables that a trigger may write
+     * and of tables with foreign key actions like ON DELETE CASCADE, since those change without a write to
+     * them. Cached cursors hold a copy of the rows and no connection.
+     * <br> The cache is shared by all instances for the same database file.
+     * @param maxBytes memory budget of the cache, 0 disables it
+     */
+    public void setQueryCacheSize(long maxBytes) {
+        sqLiteOpenHelper.queryCache = maxBytes > 0 ? new QueryCache(maxBytes) : null;
+    }
+
+    /**
+     * Record operation metrics for this database, shared by all instances for the same database file
+     * @param metrics metrics to record to, or null to stop recording
+     */
+    public void setMetrics(@Nullable DbMetrics metrics) {
+        if (metrics != null) metrics.attach(sqLiteOpenHelper.counter);
+        sqLiteOpenHelper.metrics = metrics;
+    }
+
+    /**
+     * @return metrics set with {@link #setMetrics}, or null
+     */
+    public @Nullable DbMetrics getMetrics() {
+        return sqLiteOpenHelper.metrics;
+    }
+
+    /**
+     * Gets notified when tables of a database are written through DbManPlus
+     */
+    public interface TableObserver {
+        /**
+         * Called on the writing thread after a write, keep it short
+         * @param tableName lower case name of the written table, or null if any table may have changed
+         *            (e.g. after {@link #doTransaction})
+         */
+        void onTableChanged(@Nullable String tableName);
+    }
+
+    /**
+     * Get notified when tables of this database are written through DbManPlus.
+     * <br> Observers are shared by all instances for the same database file.
+     * @param observer the observer
+     */
+    public void addTableObserver(TableObserver observer) {
+        sqLiteOpenHelper.tableObservers.addIfAbsent(observer);
+    }
+
+    /**
+     * Stop notifying an observer added with {@link #addTableObserver}
+     * @param observer the observer
+     */
+    public void removeTableObserver(TableObserver observer) {
+        sqLiteOpenHelper.tableObservers.remove(observer);
+    }
+
+    /**
+     * Called after a table was written
+     * @param tableName the table
+     */
+    private void onTableChanged(String tableName) {
+        QueryCache queryCache = sqLiteOpenHelper.queryCache;
+        if (queryCache != null) queryCache.invalidate(tableName);
+        CopyOnWriteArrayList<TableObserver> observers = sqLiteOpenHelper.tableObservers;
+        if (!observers.isEmpty()) notifyTableObservers(observers, QueryCache.normalize(tableName));
+    }
+
+    /**
+     * Called after writes to unknown tables
+     */
+    private void onAllTablesChanged() {
+        QueryCache queryCache = sqLiteOpenHelper.queryCache;
+        if (queryCache != null) queryCache.invalidateAll();
+        CopyOnWriteArrayList<TableObserver> observers = sqLiteOpenHelper.tableObservers;
+        if (!observers.isEmpty()) notifyTableObservers(observers, null);
+    }
+
+    private static void notifyTableObservers(CopyOnWriteArrayList<TableObserver> observers, @Nullable String tableName) {
+        for (TableObserver observer : observers) {
+            try {
+                observer.onTableChanged(tableName);
+            } catch (RuntimeException e) {
+                //the write itself succeeded, do not fail it
+                Log.e(TAG, "TableObserver failed", e);
             }
-            return db;
         }
     }
 
@@ -206,6 +606,8 @@ abstract public class DbManPlus {
     @CallSuper
     public boolean doTransaction(Callable<Boolean> transactionFunc) throws Exception {
         boolean successful = false;
+        DbMetrics metrics = sqLiteOpenHelper.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
         SQLiteDatabase database = this.open();
         database.beginTransaction();
 
@@ -218,6 +620,9 @@ abstract public class DbManPlus {
         } finally {
             database.endTransaction();
             this.close();
+            //statements inside the transaction are not tracked per table
+            onAllTablesChanged();
+            if (metrics != null) metrics.record(DbMetrics.Op.TRANSACTION, start);
         }
         return successful;
     }
@@ -229,6 +634,7 @@ abstract public class DbManPlus {
      *            row. The keys should be the column names and the values the
      *            column values
      * @return row ID if successful, else -1
+     * @throws SQLException on constraint violations and other errors
      */
     @CallSuper
     public long insert(String tableName, ContentValues initialValues) {
@@ -242,17 +648,48 @@ abstract public class DbManPlus {
      *            row. The keys should be the column names and the values the
      *            column values
      * @param conflictAlgorithm for insert conflict resolver
-     * @return row ID if successful, else -1
+     * @return row ID if successful, -1 if the row was not inserted because of the conflict algorithm
+     * @throws SQLException on constraint violations and other errors
      */
     @CallSuper
     public long insertWithOnConflict(String tableName, ContentValues initialValues, int conflictAlgorithm) {
-        long rowId = -1;
+        long rowId;
+        DbMetrics metrics = sqLiteOpenHelper.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
         SQLiteDatabase database = this.open();
         try {
-            rowId = database.insertWithOnConflict(tableName, null, initialValues, conflictAlgorithm);
+            rowId = executeInsert(database, tableName, initialValues, conflictAlgorithm);
+        } finally {
+            this.close();
+            onTableChanged(tableName);
+            if (metrics != null) metrics.record(DbMetrics.Op.INSERT, start);
+        }
+        return rowId;
+    }
 
+    /**
+     * Insert an item into the database, binding its values straight into a compiled statement
+     * (see {@link DbItem#bindTo}) instead of going through {@link ContentValues}
+     * @param tableName the table to insert the row into
+     * @param columns the columns to insert, in bind order
+     * @param item the item to insert
+     * @return row ID
+     * @throws SQLException on constraint violations and other errors
+     */
+    @CallSuper
+    public long insert(String tableName, String[] columns, DbItem item) {
+        long rowId;
+        DbMetrics metrics = sqLiteOpenHelper.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        SQLiteDatabase database = this.open();
+        RowInserter inserter = new RowInserter(database, tableName);
+        try {
+            rowId = inserter.insert(item, columns);
         } finally {
+            inserter.release();
             this.close();
+            onTableChanged(tableName);
+            if (metrics != null) metrics.record(DbMetrics.Op.INSERT, start);
         }
         return rowId;
     }
@@ -267,21 +704,199 @@ abstract public class DbManPlus {
     @CallSuper
     public int bulkInsert(String tableName, ContentValues[] values) {
         int numInserted = 0;
+        DbMetrics metrics = sqLiteOpenHelper.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
         SQLiteDatabase database = this.open();
+        RowInserter inserter = new RowInserter(database, tableName);
         database.beginTransaction();
         try {
             for (ContentValues cv : values) {
-                database.insertOrThrow(tableName, null, cv);
+                inserter.insert(cv);
             }
             database.setTransactionSuccessful();
             numInserted = values.length;
         } finally {
+            inserter.release();
             database.endTransaction();
             this.close();
+            onTableChanged(tableName);
+            if (metrics != null) metrics.record(DbMetrics.Op.BULK_INSERT, start);
         }
         return numInserted;
     }
 
+    /**
+     * Progress of a streaming {@link #bulkInsert(String, Iterator, int, BulkInsertListener)}
+     */
+    public interface BulkInsertListener {
+        /**
+         * A chunk was committed
+         * @param chunk index of the chunk, starting at 0
+         * @param rows number of rows in the chunk
+         * @param totalInserted rows inserted so far
+         */
+        void onChunkCommitted(int chunk, int rows, long totalInserted);
+
+        /**
+         * A chunk was rolled back. The insert continues with the next row.
+         * @param chunk index of the chunk, starting at 0
+         * @param rows number of rows that were rolled back, including the failing one
+         * @param e the failure
+         */
+        void onChunkFailed(int chunk, int rows, SQLException e);
+    }
+
+    /**
+     * Insert rows from a stream, committing a transaction every chunkSize rows.
+     * <br> Only one chunk is held in a transaction at a time, so other writers can run between chunks and
+     * the rows never have to be in memory all at once. A failing row rolls back its chunk only; the insert
+     * then continues with the next row in a new chunk.
+     * @param tableName the table to insert into
+     * @param values rows to insert, read once
+     * @param chunkSize maximum number of rows per transaction
+     * @param listener progress and failure callbacks, may be null
+     * @return number of rows inserted
+     */
+    @CallSuper
+    public long bulkInsert(String tableName, Iterator<ContentValues> values, int chunkSize, @Nullable BulkInsertListener listener) {
+        return bulkInsertChunked(tableName, null, values, chunkSize, listener);
+    }
+
+    /**
+     * Insert rows from a stream, committing a transaction every chunkSize rows.
+     * See {@link #bulkInsert(String, Iterator, int, BulkInsertListener)}
+     * @param tableName the table to insert into
+     * @param values rows to insert
+     * @param chunkSize maximum number of rows per transaction
+     * @param listener progress and failure callbacks, may be null
+     * @return number of rows inserted
+     */
+    @CallSuper
+    public long bulkInsert(String tableName, Iterable<ContentValues> values, int chunkSize, @Nullable BulkInsertListener listener) {
+        return this.bulkInsert(tableName, values.iterator(), chunkSize, listener);
+    }
+
+    /**
+     * Insert items from a stream, committing a transaction every chunkSize rows, binding their values straight
+     * into a compiled statement (see {@link DbItem#bindTo}).
+     * See {@link #bulkInsert(String, Iterator, int, BulkInsertListener)}
+     * @param tableName the table to insert into
+     * @param columns the columns to insert, in bind order
+     * @param items items to insert, read once
+     * @param chunkSize maximum number of rows per transaction
+     * @param listener progress and failure callbacks, may be null
+     * @return number of rows inserted
+     */
+    @CallSuper
+    public long bulkInsert(String tableName, String[] columns, Iterator<? extends DbItem> items, int chunkSize,
+                           @Nullable BulkInsertListener listener) {
+        return bulkInsertChunked(tableName, columns, items, chunkSize, listener);
+    }
+
+    /**
+     * Chunked insert of {@link ContentValues} rows, or of {@link DbItem}s if columns are given
+     */
+    private long bulkInsertChunked(String tableName, @Nullable String[] columns, Iterator<?> rows, int chunkSize,
+                                   @Nullable BulkInsertListener listener) {
+        if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be positive");
+        long totalInserted = 0;
+        int chunk = 0;
+        DbMetrics metrics = sqLiteOpenHelper.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+
+        while (rows.hasNext()) {
+            int inserted = 0;
+            SQLException failure = null;
+            SQLiteDatabase database = this.open();
+            RowInserter inserter = new RowInserter(database, tableName);
+            database.beginTransaction();
+            try {
+                while (inserted < chunkSize && rows.hasNext()) {
+                    Object row = rows.next();
+                    if (columns != null) inserter.insert((DbItem) row, columns);
+                    else inserter.insert((ContentValues) row);
+                    inserted++;
+                }
+                database.setTransactionSuccessful();
+            } catch (SQLException e) {
+                failure = e;
+            } finally {
+                inserter.release();
+                database.endTransaction();
+                this.close();
+                onTableChanged(tableName);
+            }
+
+            if (failure != null) {
+                if (listener != null) listener.onChunkFailed(chunk, inserted + 1, failure);
+            } else {
+                totalInserted += inserted;
+                if (listener != null) listener.onChunkCommitted(chunk, inserted, totalInserted);
+            }
+            chunk++;
+        }
+        if (metrics != null) metrics.record(DbMetrics.Op.BULK_INSERT, start);
+        return totalInserted;
+    }
+
+    /**
+     * Inserts rows one by one, reusing the compiled statement while consecutive rows have the same shape
+     */
+    private class RowInserter {
+        private final SQLiteDatabase mDatabase;
+        private final String mTableName;
+        private final StatementCache mStatementCache = sqLiteOpenHelper.statementCache;
+        private String mSql;
+        private SQLiteStatement mStatement;
+        private String mItemSql;
+
+        RowInserter(SQLiteDatabase database, String tableName) {
+            this.mDatabase = database;
+            this.mTableName = tableName;
+        }
+
+        /**
+         * @throws SQLException if the row could not be inserted
+         */
+        long insert(ContentValues values) {
+            if (values.size() == 0) {
+                return mDatabase.insertOrThrow(mTableName, null, values);
+            }
+            String[] columns = sortedColumns(values);
+            String sql = buildInsertSql(mTableName, columns, SQLiteDatabase.CONFLICT_NONE);
+            if (!sql.equals(mSql)) {
+                release();
+                mStatement = mStatementCache.acquire(mDatabase, sql);
+                mSql = sql;
+            }
+            bindValues(mStatement, values, columns, 0);
+            return mStatement.executeInsert();
+        }
+
+        /**
+         * @throws SQLException on constraint violations and other errors
+         */
+        long insert(DbItem item, String[] columns) {
+            if (mItemSql == null) mItemSql = buildInsertSql(mTableName, columns, SQLiteDatabase.CONFLICT_NONE);
+            if (!mItemSql.equals(mSql)) {
+                release();
+                mStatement = mStatementCache.acquire(mDatabase, mItemSql);
+                mSql = mItemSql;
+            }
+            if (!item.bindTo(mStatement, columns, 0)) {
+                mStatement.clearBindings();
+                return insert(item.toContentValues(columns));
+            }
+            return mStatement.executeInsert();
+        }
+
+        void release() {
+            if (mStatement != null) mStatementCache.release(mDatabase, mSql, mStatement);
+            mStatement = null;
+            mSql = null;
+        }
+    }
+
     /**
      * Delete from database
      * @param tableName the table to update in
@@ -294,13 +909,25 @@ abstract public class DbManPlus {
      */
     @CallSuper
     public int delete(String tableName, String selection, String[] selectionArgs) {
+        DbMetrics metrics = sqLiteOpenHelper.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
         SQLiteDatabase database = this.open();
 
         int count;
         try {
-            count = database.delete(tableName, selection, selectionArgs);
+            String sql = "DELETE FROM " + tableName + (!TextUtils.isEmpty(selection) ? " WHERE " + selection : "");
+            StatementCache statementCache = sqLiteOpenHelper.statementCache;
+            SQLiteStatement statement = statementCache.acquire(database, sql);
+            try {
+                bindArgs(statement, selectionArgs, 0);
+                count = statement.executeUpdateDelete();
+            } finally {
+                statementCache.release(database, sql, statement);
+            }
         } finally {
             this.close();
+            onTableChanged(tableName);
+            if (metrics != null) metrics.record(DbMetrics.Op.DELETE, start);
         }
         return count;
     }
@@ -337,89 +964,1196 @@ abstract public class DbManPlus {
      */
     @CallSuper
     public int updateWithOnConflict(String tableName, ContentValues values, String selection, String[] selectionArgs, int conflictAlgorithm) {
+        DbMetrics metrics = sqLiteOpenHelper.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
         SQLiteDatabase database = this.open();
         int count;
         try {
-            count = database.updateWithOnConflict(tableName, values, selection, selectionArgs, conflictAlgorithm);
+            if (values == null || values.size() == 0) {
+                //let SQLiteDatabase report the error
+                count = database.updateWithOnConflict(tableName, values, selection, selectionArgs, conflictAlgorithm);
+            } else {
+                String[] columns = sortedColumns(values);
+                String sql = buildUpdateSql(tableName, columns, selection, conflictAlgorithm);
+                StatementCache statementCache = sqLiteOpenHelper.statementCache;
+                SQLiteStatement statement = statementCache.acquire(database, sql);
+                try {
+                    bindValues(statement, values, columns, 0);
+                    bindArgs(statement, selectionArgs, columns.length);
+                    count = statement.executeUpdateDelete();
+                } finally {
+                    statementCache.release(database, sql, statement);
+                }
+            }
         } finally {
             this.close();
+            onTableChanged(tableName);
+            if (metrics != null) metrics.record(DbMetrics.Op.UPDATE, start);
         }
         return count;
     }
 
     /**
-     * Query the database
-     * @param tableNames tables to query
-     * @param projection A list of which columns to return. Passing
-     *   null will return all columns, which is discouraged to prevent
-     *   reading data from storage that isn't going to be used.
-     * @param selection A filter declaring which rows to return,
-     *   formatted as an SQL WHERE clause (excluding the WHERE
-     *   itself). Passing null will return all rows for the given URL.
-     * @param selectionArgs You may include ?s in selection, which
-     *   will be replaced by the values from selectionArgs, in order
-     *   that they appear in the selection. The values will be bound
-     *   as Strings.
-     * @param sortOrder How to order the rows, formatted as an SQL
-     *   ORDER BY clause (excluding the ORDER BY itself). Passing null
-     *   will use the default sort order, which may be unordered.
-     * @return Cursor
+     * Update rows in the database with the values of an item, binding them straight into a compiled statement
+     * (see {@link DbItem#bindTo}) instead of going through {@link ContentValues}
+     * @param tableName the table to update in
+     * @param columns the columns to update, in bind order
+     * @param item the item holding the new values
+     * @param selection the optional WHERE clause to apply when updating.
+     *            Passing null will update all rows.
+     * @param selectionArgs You may include ?s in the where clause, which
+     *            will be replaced by the values from whereArgs. The values
+     *            will be bound as Strings.
+     * @return number of updated rows
      */
     @CallSuper
-    public Cursor query(String tableNames, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
-        return this.query(tableNames, projection, selection, selectionArgs, null, null, sortOrder, null);
+    public int update(String tableName, String[] columns, DbItem item, String selection, String[] selectionArgs) {
+        DbMetrics metrics = sqLiteOpenHelper.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        SQLiteDatabase database = this.open();
+        int count = 0;
+        try {
+            String sql = buildUpdateSql(tableName, columns, selection, SQLiteDatabase.CONFLICT_NONE);
+            StatementCache statementCache = sqLiteOpenHelper.statementCache;
+            SQLiteStatement statement = statementCache.acquire(database, sql);
+            boolean bound;
+            try {
+                bound = item.bindTo(statement, columns, 0);
+                if (bound) {
+                    bindArgs(statement, selectionArgs, columns.length);
+                    count = statement.executeUpdateDelete();
+                }
+            } finally {
+                statementCache.release(database, sql, statement);
+            }
+            if (!bound) {
+                count = this.update(tableName, item.toContentValues(columns), selection, selectionArgs);
+            }
+        } finally {
+            this.close();
+            onTableChanged(tableName);
+            if (metrics != null) metrics.record(DbMetrics.Op.UPDATE, start);
+        }
+        return count;
     }
 
     /**
-     * Query the database
-     * @param tableNames tables to query
-     * @param projection A list of which columns to return. Passing
-     *   null will return all columns, which is discouraged to prevent
-     *   reading data from storage that isn't going to be used.
-     * @param selection A filter declaring which rows to return,
-     *   formatted as an SQL WHERE clause (excluding the WHERE
-     *   itself). Passing null will return all rows for the given URL.
-     * @param selectionArgs You may include ?s in selection, which
-     *   will be replaced by the values from selectionArgs, in order
-     *   that they appear in the selection. The values will be bound
-     *   as Strings.
-     * @param groupBy A filter declaring how to group rows, formatted
-     *   as an SQL GROUP BY clause (excluding the GROUP BY
-     *   itself). Passing null will cause the rows to not be grouped.
-     * @param having A filter declare which row groups to include in
-     *   the cursor, if row grouping is being used, formatted as an
-     *   SQL HAVING clause (excluding the HAVING itself).  Passing
-     *   null will cause all row groups to be included, and is
-     *   required when row grouping is not being used.
-     * @param sortOrder How to order the rows, formatted as an SQL
-     *   ORDER BY clause (excluding the ORDER BY itself). Passing null
-     *   will use the default sort order, which may be unordered.
-     * @param limit Limits the number of rows returned by the query,
-     *   formatted as LIMIT clause. Passing null denotes no LIMIT clause.
-     * @return Cursor
+     * Delete the rows with the given keys as a single transaction.
+     * <br> Up to a few thousand keys are bound in chunks of IN (?,...) lists. Larger sets are written to a
+     * temporary key table first and deleted with one statement joining it.
+     * @param tableName the table to delete from
+     * @param keyColumn integer key column, usually the primary key
+     * @param keys the keys of the rows to delete
+     * @return number of deleted rows
      */
     @CallSuper
-    public Cursor query(String tableNames, String[] projection, String selection, String[] selectionArgs, String groupBy,
-                        String having, String sortOrder, String limit) {
-        SQLiteDatabase database = this.open();
-
-        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-        qb.setTables(tableNames);
-        return new DbCursor(qb.query(database, projection, selection, selectionArgs, groupBy, having, sortOrder, limit), this);
+    public int deleteByKeys(String tableName, String keyColumn, long[] keys) {
+        return writeByKeys(tableName, keyColumn, keys, null);
     }
 
     /**
-     * Query the database using a raw query
-     * @param sql the SQL query. The SQL string must not be ; terminated
-     * @param selectionArgs You may include ?s in where clause in the query,
+     * Update the rows with the given keys to the same values as a single transaction.
+     * See {@link #deleteByKeys(String, String, long[])}
+     * @param tableName the table to update in
+     * @param keyColumn integer key column, usually the primary key
+     * @param keys the keys of the rows to update
+     * @param values a map from column names to new column values. null is a
+     *            valid value that will be translated to NULL.
+     * @return number of updated rows
+     * @throws IllegalArgumentException if values is empty or has 999 or more columns
+     */
+    @CallSuper
+    public int updateByKeys(String tableName, String keyColumn, long[] keys, ContentValues values) {
+        if (values == null || values.size() == 0) throw new IllegalArgumentException("Empty values");
+        return writeByKeys(tableName, keyColumn, keys, values);
+    }
+
+    /**
+     * Update each row with its own values, as a single transaction
+     * @param tableName the table to update in
+     * @param keyColumns columns that identify a row. Every row must have a value for each of them.
+     * @param rows the new values of each row, including the key columns. Columns missing from a row keep their
+     *            value.
+     * @return number of updated rows
+     */
+    @CallSuper
+    public int updateRows(String tableName, String[] keyColumns, ContentValues[] rows) {
+        return updateRowsByKeys(tableName, keyColumns, null, Arrays.asList(rows));
+    }
+
+    /**
+     * Update the row of each item with the values of the item, as a single transaction, binding them straight
+     * into a compiled statement (see {@link DbItem#bindTo})
+     * @param tableName the table to update in
+     * @param columns the columns to update, in bind order. Must contain the key columns.
+     * @param keyColumns columns that identify the row of an item
+     * @param items the items holding the new values
+     * @return number of updated rows
+     */
+    @CallSuper
+    public int updateRows(String tableName, String[] columns, String[] keyColumns, Iterable<? extends DbItem> items) {
+        return updateRowsByKeys(tableName, keyColumns, columns, items);
+    }
+
+    /**
+     * Delete or, if values are given, update rows by key
+     */
+    private int writeByKeys(String tableName, String keyColumn, long[] keys, @Nullable ContentValues values) {
+        if (keys.length == 0) return 0;
+        DbMetrics metrics = sqLiteOpenHelper.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        String[] columns = values != null ? sortedColumns(values) : new String[0];
+        //at least one key has to fit next to the values
+        if (columns.length >= MAX_BIND_ARGS) {
+            throw new IllegalArgumentException("Cannot update more than " + (MAX_BIND_ARGS - 1) + " columns by key");
+        }
+        int count = 0;
+        SQLiteDatabase database = this.open();
+        database.beginTransaction();
+        try {
+            if (keys.length > KEY_TABLE_THRESHOLD) {
+                fillKeyTable(database, keys);
+                try {
+                    count = executeForKeys(database, tableName, columns, values,
+                            keyColumn + " IN (SELECT k FROM temp." + KEY_TABLE + ")", null, 0, 0);
+                } finally {
+                    database.execSQL("DELETE FROM temp." + KEY_TABLE);
+                }
+            } else {
+                int chunkSize = MAX_BIND_ARGS - columns.length;
+                for (int from = 0; from < keys.length; from += chunkSize) {
+                    int to = Math.min(keys.length, from + chunkSize);
+                    StringBuilder selection = new StringBuilder(keyColumn.length() + 8 + (to - from) * 2);
+                    selection.append(keyColumn).append(" IN (");
+                    for (int i = from; i < to; i++) {
+                        selection.append(i > from ? ",?" : "?");
+                    }
+                    count += executeForKeys(database, tableName, columns, values, selection.append(')').toString(),
+                            keys, from, to);
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            this.close();
+            onTableChanged(tableName);
+            if (metrics != null) metrics.record(values != null ? DbMetrics.Op.UPDATE : DbMetrics.Op.DELETE, start);
+        }
+        return count;
+    }
+
+    /**
+     * Run one DELETE, or UPDATE if values are given, binding keys[from, to) after the values
+     */
+    private int executeForKeys(SQLiteDatabase database, String tableName, String[] columns, @Nullable ContentValues values,
+                               String selection, @Nullable long[] keys, int from, int to) {
+        String sql = values != null
+                ? buildUpdateSql(tableName, columns, selection, SQLiteDatabase.CONFLICT_NONE)
+                : "DELETE FROM " + tableName + " WHERE " + selection;
+        StatementCache statementCache = sqLiteOpenHelper.statementCache;
+        SQLiteStatement statement = statementCache.acquire(database, sql);
+        try {
+            if (values != null) bindValues(statement, values, columns, 0);
+            for (int i = from; i < to; i++) {
+                statement.bindLong(columns.length + i - from + 1, keys[i]);
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            statementCache.release(database, sql, statement);
+        }
+    }
+
+    /**
+     * Replace the contents of the temporary key table of this connection with the given keys.
+     * Call inside a transaction.
+     */
+    private void fillKeyTable(SQLiteDatabase database, long[] keys) {
+        database.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + KEY_TABLE + " (k INTEGER PRIMARY KEY)");
+        database.execSQL("DELETE FROM temp." + KEY_TABLE);
+        //one row per statement, multi-row VALUES needs SQLite 3.7.11
+        String insertSql = "INSERT OR IGNORE INTO temp." + KEY_TABLE + "(k) VALUES (?)";
+        StatementCache statementCache = sqLiteOpenHelper.statementCache;
+        SQLiteStatement statement = statementCache.acquire(database, insertSql);
+        try {
+            for (long key : keys) {
+                statement.bindLong(1, key);
+                statement.executeInsert();
+            }
+        } finally {
+            statementCache.release(database, insertSql, statement);
+        }
+    }
+
+    /**
+     * Update rows one by one through UPDATE ... WHERE key=?, reusing the compiled statement while consecutive
+     * rows have the same shape. {@link ContentValues} rows, or {@link DbItem}s if columns are given.
+     */
+    private int updateRowsByKeys(String tableName, String[] keyColumns, @Nullable String[] columns, Iterable<?> rows) {
+        if (keyColumns == null || keyColumns.length == 0) throw new IllegalArgumentException("keyColumns must not be empty");
+        DbMetrics metrics = sqLiteOpenHelper.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        StatementCache statementCache = sqLiteOpenHelper.statementCache;
+        int count = 0;
+        String sql = null;
+        SQLiteStatement statement = null;
+        SQLiteDatabase database = this.open();
+        database.beginTransaction();
+        try {
+            for (Object row : rows) {
+                String[] rowColumns = columns;
+                ContentValues values = null;
+                if (columns == null) {
+                    values = (ContentValues) row;
+                    rowColumns = sortedColumns(values);
+                }
+                while (true) {
+                    checkKeys(rowColumns, keyColumns);
+                    //numbered arguments, so that keys bind at their position in the columns
+                    String rowSql = buildKeyedUpdateSql(tableName, rowColumns, keyColumns);
+                    if (!rowSql.equals(sql)) {
+                        if (statement != null) statementCache.release(database, sql, statement);
+                        statement = statementCache.acquire(database, rowSql);
+                        sql = rowSql;
+                    }
+                    if (values != null) {
+                        bindValues(statement, values, rowColumns, 0);
+                    } else if (!((DbItem) row).bindTo(statement, rowColumns, 0)) {
+                        statement.clearBindings();
+                        values = ((DbItem) row).toContentValues(rowColumns);
+                        rowColumns = sortedColumns(values);
+                        continue;
+                    }
+                    count += statement.executeUpdateDelete();
+                    break;
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            if (statement != null) statementCache.release(database, sql, statement);
+            database.endTransaction();
+            this.close();
+            onTableChanged(tableName);
+            if (metrics != null) metrics.record(DbMetrics.Op.UPDATE, start);
+        }
+        return count;
+    }
+
+    /**
+     * Result of {@link #upsert}
+     */
+    public static final class UpsertResult {
+        private final long mInserted;
+        private final long mUpdated;
+
+        UpsertResult(long inserted, long updated) {
+            this.mInserted = inserted;
+            this.mUpdated = updated;
+        }
+
+        /**
+         * @return number of rows that were new
+         */
+        public long getInserted() {
+            return mInserted;
+        }
+
+        /**
+         * @return number of rows that replaced the values of an existing row
+         */
+        public long getUpdated() {
+            return mUpdated;
+        }
+
+        @Override
+        public String toString() {
+            return "UpsertResult{inserted=" + mInserted + ", updated=" + mUpdated + '}';
+        }
+    }
+
+    /**
+     * Insert rows, or update the existing rows with the same key, as a single transaction.
+     * <br> With SQLite 3.24+ consecutive rows with the same columns are packed into multi-row
+     * INSERT ... ON CONFLICT DO UPDATE statements, as many rows per statement as fit into the limit of 999
+     * bound arguments. Older versions update each row and insert it if no row was updated.
+     * @param tableName the table to write to
+     * @param keyColumns columns of the primary key or of a unique index of the table. Every row must have a
+     *            value for each of them.
+     * @param values the rows. Columns missing from a row keep their value when the row is updated.
+     * @return number of inserted and updated rows
+     * @throws SQLException if a row could not be written. Nothing is written in that case.
+     * @throws IllegalArgumentException if a row has more than 999 columns. Nothing is written in that case.
+     */
+    @CallSuper
+    public UpsertResult upsert(String tableName, String[] keyColumns, ContentValues[] values) {
+        return upsertRows(tableName, keyColumns, null, Arrays.asList(values));
+    }
+
+    /**
+     * Insert items, or update the existing rows with the same key, as a single transaction, binding their
+     * values straight into compiled statements (see {@link DbItem#bindTo}).
+     * See {@link #upsert(String, String[], ContentValues[])}
+     * @param tableName the table to write to
+     * @param columns the columns to write, in bind order. Must contain the key columns.
+     * @param keyColumns columns of the primary key or of a unique index of the table
+     * @param items the items to write
+     * @return number of inserted and updated rows
+     * @throws SQLException if a row could not be written. Nothing is written in that case.
+     * @throws IllegalArgumentException if there are more than 999 columns
+     */
+    @CallSuper
+    public UpsertResult upsert(String tableName, String[] columns, String[] keyColumns, Iterable<? extends DbItem> items) {
+        return upsertRows(tableName, keyColumns, columns, items);
+    }
+
+    /**
+     * Upsert of {@link ContentValues} rows, or of {@link DbItem}s if columns are given
+     */
+    private UpsertResult upsertRows(String tableName, String[] keyColumns, @Nullable String[] columns, Iterable<?> rows) {
+        if (keyColumns == null || keyColumns.length == 0) throw new IllegalArgumentException("keyColumns must not be empty");
+        if (columns != null) checkBindLimit(columns);
+        DbMetrics metrics = sqLiteOpenHelper.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        SQLiteDatabase database = this.open();
+        RowUpserter upserter = new RowUpserter(database, tableName, keyColumns, supportsUpsert(database));
+        database.beginTransaction();
+        try {
+            for (Object row : rows) {
+                if (columns != null) upserter.add((DbItem) row, columns);
+                else upserter.add((ContentValues) row);
+            }
+            upserter.flush();
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            this.close();
+            onTableChanged(tableName);
+            if (metrics != null) metrics.record(DbMetrics.Op.UPSERT, start);
+        }
+        return new UpsertResult(upserter.mInserted, upserter.mUpdated);
+    }
+
+    /**
+     * A row of an upsert must fit into one statement, even when it is written alone
+     */
+    private static void checkBindLimit(String[] columns) {
+        if (columns.length > MAX_BIND_ARGS) {
+            throw new IllegalArgumentException("Cannot upsert more than " + MAX_BIND_ARGS + " columns");
+        }
+    }
+
+    /**
+     * @return true if the SQLite library supports INSERT ... ON CONFLICT DO UPDATE
+     */
+    private boolean supportsUpsert(SQLiteDatabase database) {
+        Boolean supported = sqLiteOpenHelper.supportsUpsert;
+        if (supported == null) {
+            supported = DbBackup.versionAtLeast(DatabaseUtils.stringForQuery(database, "SELECT sqlite_version()", null), 3, 24);
+            sqLiteOpenHelper.supportsUpsert = supported;
+        }
+        return supported;
+    }
+
+    /**
+     * Collects consecutive rows with the same columns and writes them with one multi-row statement, or row by
+     * row on SQLite versions without upsert support
+     */
+    private class RowUpserter {
+        private final SQLiteDatabase mDatabase;
+        private final String mTableName;
+        private final String[] mKeyColumns;
+        private final boolean mMultiRow;
+        private final StatementCache mStatementCache = sqLiteOpenHelper.statementCache;
+        private final ArrayList<Object> mPending = new ArrayList<>();
+        private String[] mPendingColumns;
+        long mInserted;
+        long mUpdated;
+
+        RowUpserter(SQLiteDatabase database, String tableName, String[] keyColumns, boolean multiRow) {
+            this.mDatabase = database;
+            this.mTableName = tableName;
+            this.mKeyColumns = keyColumns;
+            this.mMultiRow = multiRow;
+        }
+
+        void add(ContentValues values) {
+            add(values, sortedColumns(values));
+        }
+
+        void add(DbItem item, String[] columns) {
+            add((Object) item, columns);
+        }
+
+        private void add(Object row, String[] columns) {
+            checkBindLimit(columns);
+            if (!mMultiRow) {
+                upsertSingle(row, columns);
+                return;
+            }
+            if (!mPending.isEmpty() && !Arrays.equals(columns, mPendingColumns)) flush();
+            if (mPending.isEmpty()) {
+                checkKeys(columns);
+                mPendingColumns = columns;
+            }
+            mPending.add(row);
+            if (mPending.size() >= MAX_BIND_ARGS / columns.length) flush();
+        }
+
+        void flush() {
+            if (mPending.isEmpty()) return;
+            ArrayList<Object> rows = new ArrayList<>(mPending);
+            mPending.clear();
+            upsertBatch(rows, mPendingColumns);
+        }
+
+        /**
+         * Write rows with one INSERT ... ON CONFLICT DO UPDATE statement. Before it runs, the keys of the rows
+         * are looked up in the table to count the rows that will be new.
+         */
+        private void upsertBatch(List<Object> rows, String[] columns) {
+            String sql = buildUpsertSql(mTableName, columns, mKeyColumns, rows.size());
+            SQLiteStatement statement = mStatementCache.acquire(mDatabase, sql);
+            long newRows = 0;
+            List<DbItem> unbound;
+            try {
+                unbound = bindRows(statement, rows, columns);
+                if (unbound.isEmpty()) {
+                    newRows = countNewRows(rows);
+                    statement.executeUpdateDelete();
+                }
+            } finally {
+                mStatementCache.release(mDatabase, sql, statement);
+            }
+            if (!unbound.isEmpty()) {
+                //items that need ContentValues have other columns, write them separately
+                ArrayList<Object> bound = new ArrayList<>(rows.size());
+                for (Object row : rows) {
+                    if (!containsItem(unbound, row)) bound.add(row);
+                }
+                if (!bound.isEmpty()) upsertBatch(bound, columns);
+                for (DbItem item : unbound) {
+                    ContentValues values = item.toContentValues(columns);
+                    upsertBatch(new ArrayList<Object>(Collections.singletonList(values)), checkKeys(sortedColumns(values)));
+                }
+                return;
+            }
+            mInserted += newRows;
+            mUpdated += rows.size() - newRows;
+        }
+
+        /**
+         * Count the rows that will be inserted: rows with a NULL key, which never conflicts, and distinct keys
+         * that are not in the table. Only the key values are bound.
+         */
+        private long countNewRows(List<Object> rows) {
+            long newRows = 0;
+            LinkedHashSet<List<Object>> keys = new LinkedHashSet<>();
+            for (Object row : rows) {
+                Object[] key = new Object[mKeyColumns.length];
+                boolean hasNull = false;
+                for (int i = 0; i < key.length; i++) {
+                    key[i] = keyValue(row, mKeyColumns[i]);
+                    if (key[i] == null) hasNull = true;
+                }
+                if (hasNull) newRows++;
+                else keys.add(Arrays.asList(key));
+            }
+            if (keys.isEmpty()) return newRows;
+
+            String sql = buildKeyCountSql(mTableName, mKeyColumns, keys.size());
+            SQLiteStatement count = mStatementCache.acquire(mDatabase, sql);
+            try {
+                int index = 1;
+                for (List<Object> key : keys) {
+                    for (Object value : key) {
+                        if (value instanceof ByteBuffer) count.bindBlob(index++, ((ByteBuffer) value).array());
+                        else DatabaseUtils.bindObjectToProgram(count, index++, value);
+                    }
+                }
+                return newRows + keys.size() - count.simpleQueryForLong();
+            } finally {
+                mStatementCache.release(mDatabase, sql, count);
+            }
+        }
+
+        /**
+         * @return the items that could not be bound without {@link ContentValues}
+         */
+        private List<DbItem> bindRows(SQLiteStatement statement, List<Object> rows, String[] columns) {
+            List<DbItem> unbound = Collections.emptyList();
+            int offset = 0;
+            for (Object row : rows) {
+                if (row instanceof DbItem) {
+                    DbItem item = (DbItem) row;
+                    if (!item.bindTo(statement, columns, offset)) {
+                        if (unbound.isEmpty()) unbound = new ArrayList<>();
+                        unbound.add(item);
+                    }
+                } else {
+                    bindValues(statement, (ContentValues) row, columns, offset);
+                }
+                offset += columns.length;
+            }
+            return unbound;
+        }
+
+        /**
+         * Update the row with the key of the given row, and insert it if there is none
+         */
+        private void upsertSingle(Object row, String[] columns) {
+            checkKeys(columns);
+            //a row of only keys has nothing to update, it only has to be found
+            boolean keysOnly = !hasNonKeyColumns(columns, mKeyColumns);
+            //numbered arguments, so that the update binds in the same order as the insert
+            String updateSql = keysOnly ? buildKeyedCountSql(mTableName, columns, mKeyColumns)
+                    : buildKeyedUpdateSql(mTableName, columns, mKeyColumns);
+            SQLiteStatement update = mStatementCache.acquire(mDatabase, updateSql);
+            long updated = 0;
+            boolean bound = true;
+            try {
+                if (row instanceof DbItem) bound = ((DbItem) row).bindTo(update, columns, 0);
+                else bindValues(update, (ContentValues) row, columns, 0);
+                if (bound) {
+                    updated = keysOnly ? update.simpleQueryForLong() : update.executeUpdateDelete();
+                }
+            } finally {
+                mStatementCache.release(mDatabase, updateSql, update);
+            }
+            if (!bound) {
+                ContentValues values = ((DbItem) row).toContentValues(columns);
+                upsertSingle(values, sortedColumns(values));
+                return;
+            }
+            if (updated > 0) {
+                mUpdated++;
+                return;
+            }
+
+            String insertSql = buildInsertSql(mTableName, columns, SQLiteDatabase.CONFLICT_NONE);
+            SQLiteStatement insert = mStatementCache.acquire(mDatabase, insertSql);
+            try {
+                if (row instanceof DbItem) ((DbItem) row).bindTo(insert, columns, 0);
+                else bindValues(insert, (ContentValues) row, columns, 0);
+                insert.executeInsert();
+            } finally {
+                mStatementCache.release(mDatabase, insertSql, insert);
+            }
+            mInserted++;
+        }
+
+        private String[] checkKeys(String[] columns) {
+            return DbManPlus.checkKeys(columns, mKeyColumns);
+        }
+    }
+
+    private static String[] checkKeys(String[] columns, String[] keyColumns) {
+        for (String key : keyColumns) {
+            if (indexOf(columns, key) < 0) throw new IllegalArgumentException("Row has no value for key column " + key);
+        }
+        return columns;
+    }
+
+    private static boolean containsItem(List<DbItem> items, Object row) {
+        for (DbItem item : items) {
+            if (item == row) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Value of a key column of a {@link ContentValues} row or a {@link DbItem}, in a form that compares equal
+     * for equal keys
+     */
+    private static @Nullable Object keyValue(Object row, String keyColumn) {
+        Object value;
+        if (row instanceof ContentValues) {
+            value = ((ContentValues) row).get(keyColumn);
+        } else {
+            DbItem item = (DbItem) row;
+            value = item.canBindFromGetVal() ? item.getVal(keyColumn)
+                    : item.toContentValues(new String[]{keyColumn}).get(keyColumn);
+        }
+        if (value instanceof Float || value instanceof Double) return ((Number) value).doubleValue();
+        if (value instanceof Number) return ((Number) value).longValue();
+        if (value instanceof Boolean) return (Boolean) value ? 1L : 0L;
+        if (value instanceof byte[]) return ByteBuffer.wrap((byte[]) value);
+        return value;
+    }
+
+    private static boolean hasNonKeyColumns(String[] columns, String[] keyColumns) {
+        for (String column : columns) {
+            if (indexOf(keyColumns, column) < 0) return true;
+        }
+        return false;
+    }
+
+    private static int indexOf(String[] columns, String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(column)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * INSERT INTO table(columns) VALUES (...),(...) ON CONFLICT(keys) DO UPDATE SET column=excluded.column
+     */
+    private static String buildUpsertSql(String tableName, String[] columns, String[] keyColumns, int rows) {
+        StringBuilder sql = new StringBuilder(64 + columns.length * 24 + rows * columns.length * 2);
+        sql.append("INSERT INTO ").append(tableName).append('(');
+        appendColumns(sql, columns);
+        sql.append(") VALUES ");
+        appendValues(sql, columns.length, rows);
+        sql.append(" ON CONFLICT(");
+        appendColumns(sql, keyColumns);
+        sql.append(") DO ");
+        boolean first = true;
+        for (String column : columns) {
+            if (indexOf(keyColumns, column) >= 0) continue;
+            sql.append(first ? "UPDATE SET " : ",").append(column).append("=excluded.").append(column);
+            first = false;
+        }
+        if (first) sql.append("NOTHING");
+        return sql.toString();
+    }
+
+    /**
+     * Count of the rows with one of the given keys: SELECT COUNT(*) FROM table WHERE (keys) IN (VALUES (...),(...))
+     */
+    private static String buildKeyCountSql(String tableName, String[] keyColumns, int keys) {
+        StringBuilder sql = new StringBuilder(48 + keyColumns.length * 16 + keys * keyColumns.length * 2);
+        sql.append("SELECT COUNT(*) FROM ").append(tableName).append(" WHERE ");
+        if (keyColumns.length == 1) {
+            sql.append(keyColumns[0]).append(" IN (");
+            for (int i = 0; i < keys; i++) {
+                sql.append(i > 0 ? ",?" : "?");
+            }
+            return sql.append(')').toString();
+        }
+        //row values, SQLite 3.15+, upserts need 3.24 anyway
+        sql.append('(');
+        appendColumns(sql, keyColumns);
+        sql.append(") IN (VALUES ");
+        appendValues(sql, keyColumns.length, keys);
+        return sql.append(')').toString();
+    }
+
+    /**
+     * UPDATE table SET column=?n WHERE key=?m, with the argument numbers of the columns
+     * @throws IllegalArgumentException if all columns are keys
+     */
+    private static String buildKeyedUpdateSql(String tableName, String[] columns, String[] keyColumns) {
+        if (!hasNonKeyColumns(columns, keyColumns)) throw new IllegalArgumentException("No columns to update");
+        StringBuilder sql = new StringBuilder(48 + columns.length * 16);
+        boolean first = true;
+        for (int i = 0; i < columns.length; i++) {
+            if (indexOf(keyColumns, columns[i]) >= 0) continue;
+            sql.append(first ? "UPDATE " + tableName + " SET " : ",").append(columns[i]).append("=?").append(i + 1);
+            first = false;
+        }
+        appendKeyWhere(sql, columns, keyColumns);
+        return sql.toString();
+    }
+
+    /**
+     * SELECT COUNT(*) FROM table WHERE key=?m, with the argument numbers of the columns
+     */
+    private static String buildKeyedCountSql(String tableName, String[] columns, String[] keyColumns) {
+        StringBuilder sql = new StringBuilder(32 + keyColumns.length * 16);
+        sql.append("SELECT COUNT(*) FROM ").append(tableName);
+        appendKeyWhere(sql, columns, keyColumns);
+        return sql.toString();
+    }
+
+    private static void appendKeyWhere(StringBuilder sql, String[] columns, String[] keyColumns) {
+        for (int i = 0; i < keyColumns.length; i++) {
+            sql.append(i > 0 ? " AND " : " WHERE ").append(keyColumns[i]).append("=?").append(indexOf(columns, keyColumns[i]) + 1);
+        }
+    }
+
+    private static void appendColumns(StringBuilder sql, String[] columns) {
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) sql.append(',');
+            sql.append(columns[i]);
+        }
+    }
+
+    private static void appendValues(StringBuilder sql, int columns, int rows) {
+        for (int row = 0; row < rows; row++) {
+            sql.append(row > 0 ? ",(" : "(");
+            for (int i = 0; i < columns; i++) {
+                sql.append(i > 0 ? ",?" : "?");
+            }
+            sql.append(')');
+        }
+    }
+
+    /**
+     * Insert a row through a cached compiled statement
+     * @return row ID, or -1 if no row was inserted
+     * @throws SQLException on constraint violations and other errors
+     */
+    private long executeInsert(SQLiteDatabase database, String tableName, ContentValues values, int conflictAlgorithm) {
+        if (values == null || values.size() == 0) {
+            //let SQLiteDatabase handle the empty row
+            return database.insertWithOnConflict(tableName, null, values, conflictAlgorithm);
+        }
+        String[] columns = sortedColumns(values);
+        String sql = buildInsertSql(tableName, columns, conflictAlgorithm);
+        StatementCache statementCache = sqLiteOpenHelper.statementCache;
+        SQLiteStatement statement = statementCache.acquire(database, sql);
+        try {
+            bindValues(statement, values, columns, 0);
+            return statement.executeInsert();
+        } finally {
+            statementCache.release(database, sql, statement);
+        }
+    }
+
+    /**
+     * Column names of the given values in a stable order, so that rows of the same shape share one statement
+     */
+    private static String[] sortedColumns(ContentValues values) {
+        String[] columns = values.keySet().toArray(new String[values.size()]);
+        Arrays.sort(columns);
+        return columns;
+    }
+
+    private static String buildInsertSql(String tableName, String[] columns, int conflictAlgorithm) {
+        StringBuilder sql = new StringBuilder(32 + columns.length * 16);
+        sql.append("INSERT").append(CONFLICT_VALUES[conflictAlgorithm]).append(" INTO ").append(tableName).append('(');
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) sql.append(',');
+            sql.append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ",?" : "?");
+        }
+        return sql.append(')').toString();
+    }
+
+    private static String buildUpdateSql(String tableName, String[] columns, String selection, int conflictAlgorithm) {
+        StringBuilder sql = new StringBuilder(32 + columns.length * 16);
+        sql.append("UPDATE").append(CONFLICT_VALUES[conflictAlgorithm]).append(' ').append(tableName).append(" SET ");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) sql.append(',');
+            sql.append(columns[i]).append("=?");
+        }
+        if (!TextUtils.isEmpty(selection)) sql.append(" WHERE ").append(selection);
+        return sql.toString();
+    }
+
+    /**
+     * Bind values in the order of columns, starting after the given number of already bound arguments
+     */
+    private static void bindValues(SQLiteStatement statement, ContentValues values, String[] columns, int offset) {
+        for (int i = 0; i < columns.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, offset + i + 1, values.get(columns[i]));
+        }
+    }
+
+    /**
+     * Bind selection arguments, starting after the given number of already bound arguments
+     */
+    private static void bindArgs(SQLiteStatement statement, String[] args, int offset) {
+        if (args == null) return;
+        for (int i = 0; i < args.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, offset + i + 1, args[i]);
+        }
+    }
+
+    /**
+     * Query the database
+     * @param tableNames tables to query
+     * @param projection A list of which columns to return. Passing
+     *   null will return all columns, which is discouraged to prevent
+     *   reading data from storage that isn't going to be used.
+     * @param selection A filter declaring which rows to return,
+     *   formatted as an SQL WHERE clause (excluding the WHERE
+     *   itself). Passing null will return all rows for the given URL.
+     * @param selectionArgs You may include ?s in selection, which
+     *   will be replaced by the values from selectionArgs, in order
+     *   that they appear in the selection. The values will be bound
+     *   as Strings.
+     * @param sortOrder How to order the rows, formatted as an SQL
+     *   ORDER BY clause (excluding the ORDER BY itself). Passing null
+     *   will use the default sort order, which may be unordered.
+     * @return Cursor
+     */
+    @CallSuper
+    public Cursor query(String tableNames, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        return this.query(tableNames, projection, selection, selectionArgs, null, null, sortOrder, null);
+    }
+
+    /**
+     * Query the database
+     * @param tableNames tables to query
+     * @param projection A list of which columns to return. Passing
+     *   null will return all columns, which is discouraged to prevent
+     *   reading data from storage that isn't going to be used.
+     * @param selection A filter declaring which rows to return,
+     *   formatted as an SQL WHERE clause (excluding the WHERE
+     *   itself). Passing null will return all rows for the given URL.
+     * @param selectionArgs You may include ?s in selection, which
+     *   will be replaced by the values from selectionArgs, in order
+     *   that they appear in the selection. The values will be bound
+     *   as Strings.
+     * @param groupBy A filter declaring how to group rows, formatted
+     *   as an SQL GROUP BY clause (excluding the GROUP BY
+     *   itself). Passing null will cause the rows to not be grouped.
+     * @param having A filter declare which row groups to include in
+     *   the cursor, if row grouping is being used, formatted as an
+     *   SQL HAVING clause (excluding the HAVING itself).  Passing
+     *   null will cause all row groups to be included, and is
+     *   required when row grouping is not being used.
+     * @param sortOrder How to order the rows, formatted as an SQL
+     *   ORDER BY clause (excluding the ORDER BY itself). Passing null
+     *   will use the default sort order, which may be unordered.
+     * @param limit Limits the number of rows returned by the query,
+     *   formatted as LIMIT clause. Passing null denotes no LIMIT clause.
+     * @return Cursor
+     */
+    @CallSuper
+    public Cursor query(String tableNames, String[] projection, String selection, String[] selectionArgs, String groupBy,
+                        String having, String sortOrder, String limit) {
+        return queryInternal(tableNames, projection, selection, selectionArgs, groupBy, having, sortOrder, limit, null);
+    }
+
+    /**
+     * Query the database, with the option to cancel it while it runs
+     * @param tableNames tables to query
+     * @param projection A list of which columns to return. Passing
+     *   null will return all columns, which is discouraged to prevent
+     *   reading data from storage that isn't going to be used.
+     * @param selection A filter declaring which rows to return,
+     *   formatted as an SQL WHERE clause (excluding the WHERE
+     *   itself). Passing null will return all rows for the given URL.
+     * @param selectionArgs You may include ?s in selection, which
+     *   will be replaced by the values from selectionArgs, in order
+     *   that they appear in the selection. The values will be bound
+     *   as Strings.
+     * @param groupBy A filter declaring how to group rows, formatted
+     *   as an SQL GROUP BY clause (excluding the GROUP BY
+     *   itself). Passing null will cause the rows to not be grouped.
+     * @param having A filter declare which row groups to include in
+     *   the cursor, if row grouping is being used, formatted as an
+     *   SQL HAVING clause (excluding the HAVING itself).  Passing
+     *   null will cause all row groups to be included, and is
+     *   required when row grouping is not being used.
+     * @param sortOrder How to order the rows, formatted as an SQL
+     *   ORDER BY clause (excluding the ORDER BY itself). Passing null
+     *   will use the default sort order, which may be unordered.
+     * @param limit Limits the number of rows returned by the query,
+     *   formatted as LIMIT clause. Passing null denotes no LIMIT clause.
+     * @param cancellationSignal signal to cancel the query, or null.
+     *   A cancelled query throws {@link android.os.OperationCanceledException}.
+     * @return Cursor
+     */
+    @RequiresApi(Build.VERSION_CODES.JELLY_BEAN)
+    @CallSuper
+    public Cursor query(String tableNames, String[] projection, String selection, String[] selectionArgs, String groupBy,
+                        String having, String sortOrder, String limit, @Nullable CancellationSignal cancellationSignal) {
+        return queryInternal(tableNames, projection, selection, selectionArgs, groupBy, having, sortOrder, limit, cancellationSignal);
+    }
+
+    /**
+     * Query the database, using the query cache if enabled
+     */
+    private Cursor queryInternal(String tableNames, String[] projection, String selection, String[] selectionArgs, String groupBy,
+                                 String having, String sortOrder, String limit, @Nullable CancellationSignal cancellationSignal) {
+        DbMetrics metrics = sqLiteOpenHelper.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        QueryCache queryCache = sqLiteOpenHelper.queryCache;
+        String[] tables = null;
+        String cacheKey = null;
+        long cacheVersion = 0;
+        if (queryCache != null && !inTransaction()) {
+            tables = QueryCache.tablesOf(tableNames, selection, groupBy, having);
+            if (tables != null) {
+                cacheKey = QueryCache.key(SQLiteQueryBuilder.buildQueryString(false, tableNames, projection, selection,
+                        groupBy, having, sortOrder, limit), selectionArgs);
+                CachedCursor.Result cached = queryCache.get(cacheKey);
+                if (cached != null) {
+                    Cursor cursor = new CachedCursor(cached);
+                    if (metrics != null) recordQuery(metrics, DbMetrics.Op.QUERY, start, cursor);
+                    return cursor;
+                }
+                cacheVersion = queryCache.version(tables);
+            }
+        }
+
+        SQLiteDatabase database = this.open();
+
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(tableNames);
+        Cursor cursor;
+        try {
+            cursor = new DbCursor(cancellationSignal == null
+                    ? qb.query(database, projection, selection, selectionArgs, groupBy, having, sortOrder, limit)
+                    : qb.query(database, projection, selection, selectionArgs, groupBy, having, sortOrder, limit,
+                    cancellationSignal), this);
+        } catch (RuntimeException e) {
+            this.close();
+            throw e;
+        }
+
+        if (cacheKey != null && queryCache.isCacheable(database, tables)) {
+            cursor = queryCache.cache(cacheKey, tables, cacheVersion, cursor);
+        }
+        if (metrics != null) recordQuery(metrics, DbMetrics.Op.QUERY, start, cursor);
+        return cursor;
+    }
+
+    /**
+     * Query the database using a raw query
+     * @param sql the SQL query. The SQL string must not be ; terminated
+     * @param selectionArgs You may include ?s in where clause in the query,
      *     which will be replaced by the values from selectionArgs. The
      *     values will be bound as Strings.
      * @return Cursor
      */
     @CallSuper
     public Cursor rawQuery(String sql, String[] selectionArgs) {
+        return rawQueryInternal(sql, selectionArgs, null);
+    }
+
+    /**
+     * Query the database using a raw query, with the option to cancel it while it runs
+     * @param sql the SQL query. The SQL string must not be ; terminated
+     * @param selectionArgs You may include ?s in where clause in the query,
+     *     which will be replaced by the values from selectionArgs. The
+     *     values will be bound as Strings.
+     * @param cancellationSignal signal to cancel the query, or null.
+     *     A cancelled query throws {@link android.os.OperationCanceledException}.
+     * @return Cursor
+     */
+    @RequiresApi(Build.VERSION_CODES.JELLY_BEAN)
+    @CallSuper
+    public Cursor rawQuery(String sql, String[] selectionArgs, @Nullable CancellationSignal cancellationSignal) {
+        return rawQueryInternal(sql, selectionArgs, cancellationSignal);
+    }
+
+    private Cursor rawQueryInternal(String sql, String[] selectionArgs, @Nullable CancellationSignal cancellationSignal) {
+        DbMetrics metrics = sqLiteOpenHelper.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        SQLiteDatabase database = this.open();
+        Cursor cursor;
+        try {
+            cursor = new DbCursor(cancellationSignal == null ? database.rawQuery(sql, selectionArgs)
+                    : database.rawQuery(sql, selectionArgs, cancellationSignal), this);
+        } catch (RuntimeException e) {
+            this.close();
+            throw e;
+        }
+        if (metrics != null) recordQuery(metrics, DbMetrics.Op.RAW_QUERY, start, cursor);
+        return cursor;
+    }
+
+    /**
+     * Record latency and row count of a query. Counting runs the query, which SQLite otherwise does
+     * lazily on the first move, so that the latency includes the SQL execution.
+     */
+    private static void recordQuery(DbMetrics metrics, DbMetrics.Op op, long start, Cursor cursor) {
+        int rows;
+        try {
+            rows = cursor.getCount();
+        } catch (RuntimeException e) {
+            cursor.close();
+            throw e;
+        }
+        metrics.record(op, start);
+        metrics.recordRows(rows);
+    }
+
+    /**
+     * Gets the progress of an export or import
+     */
+    public interface BackupProgressListener {
+        /**
+         * Called on the exporting or importing thread after every block
+         * @param bytesDone bytes of the database written or read so far
+         * @param bytesTotal total bytes of the database, -1 if not known
+         */
+        void onProgress(long bytesDone, long bytesTotal);
+    }
+
+    /**
+     * Store a large value in chunks of 256 KB, so it never has to be in memory or in one CursorWindow at once. Read it back with {@link #openBlob}.
+     * <br> The chunks are written in several short transactions, so other writers are not blocked while the
+     * stream is read. The value becomes visible when the last chunk is committed. If reading the stream
+     * fails, the chunks written so far are removed.
+     * <br> Values live in the tables _dbmp_blobs and _dbmp_blob_chunks, which are created when they are first
+     * needed. Keep the returned id in a column of your own table.
+     * @param in the value, read to the end but not closed
+     * @return id of the stored value
+     * @throws IOException if the stream could not be read
+     */
+    public long writeBlob(InputStream in) throws IOException {
+        SQLiteDatabase database = this.open();
+        long id = -1;
+        boolean complete = false;
+        try {
+            ensureBlobTables(database);
+            id = database.insertOrThrow(BLOB_TABLE, BLOB_SIZE, blobRow(null));
+            StatementCache statementCache = sqLiteOpenHelper.statementCache;
+            String sql = "INSERT INTO " + BLOB_CHUNK_TABLE + "(blob_id,seq,data) VALUES (?,?,?)";
+            byte[] buffer = new byte[BLOB_CHUNK_SIZE];
+            long size = 0;
+            int seq = 0;
+            boolean end = false;
+            while (!end) {
+                database.beginTransaction();
+                try {
+                    SQLiteStatement statement = statementCache.acquire(database, sql);
+                    try {
+                        for (int i = 0; i < BLOB_CHUNKS_PER_TRANSACTION && !end; i++) {
+                            int length = readChunk(in, buffer);
+                            end = length < buffer.length;
+                            if (length == 0) break;
+                            statement.bindLong(1, id);
+                            statement.bindLong(2, seq++);
+                            statement.bindBlob(3, length == buffer.length ? buffer : Arrays.copyOf(buffer, length));
+                            statement.executeInsert();
+                            size += length;
+                        }
+                    } finally {
+                        statementCache.release(database, sql, statement);
+                    }
+                    //the value is complete in the same transaction as its last chunk
+                    if (end) database.update(BLOB_TABLE, blobRow(size), "_id = ?", new String[]{String.valueOf(id)});
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+            }
+            complete = true;
+            return id;
+        } finally {
+            if (!complete && id != -1) {
+                try {
+                    deleteBlobRows(database, id);
+                } catch (SQLException e) {
+                    //removed as an incomplete value the next time the tables are set up
+                    Log.e(TAG, "Error removing incomplete blob " + id, e);
+                }
+            }
+            this.close();
+            onTableChanged(BLOB_TABLE);
+            onTableChanged(BLOB_CHUNK_TABLE);
+        }
+    }
+
+    /**
+     * Read a value stored with {@link #writeBlob}. The chunks are read one at a time while the stream is read.
+     * @param id id returned by {@link #writeBlob}
+     * @return the value, null if there is no value with this id. Close it when done.
+     */
+    public @Nullable InputStream openBlob(long id) {
+        SQLiteDatabase database = this.open();
+        try {
+            ensureBlobTables(database);
+        } finally {
+            this.close();
+        }
+        Cursor cursor = this.rawQuery("SELECT " + BLOB_SIZE + ",chunk_size FROM " + BLOB_TABLE + " WHERE _id = ? AND "
+                + BLOB_SIZE + " IS NOT NULL", new String[]{String.valueOf(id)});
+        try {
+            if (!cursor.moveToFirst()) return null;
+            return new BlobInputStream(this, id, cursor.getLong(0), cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Delete a value stored with {@link #writeBlob}
+     * @param id id returned by {@link #writeBlob}
+     * @return true if the value existed
+     */
+    public boolean deleteBlob(long id) {
         SQLiteDatabase database = this.open();
-        return new DbCursor(database.rawQuery(sql, selectionArgs), this);
+        try {
+            ensureBlobTables(database);
+            return deleteBlobRows(database, id);
+        } finally {
+            this.close();
+            onTableChanged(BLOB_TABLE);
+            onTableChanged(BLOB_CHUNK_TABLE);
+        }
+    }
+
+    /**
+     * Read the chunk of a value stored with {@link #writeBlob}, for {@link BlobInputStream}
+     * @return the chunk, null if the value was deleted
+     */
+    @Nullable byte[] readBlobChunk(long id, int seq) {
+        Cursor cursor = this.rawQuery("SELECT data FROM " + BLOB_CHUNK_TABLE + " WHERE blob_id = ? AND seq = ?",
+                new String[]{String.valueOf(id), String.valueOf(seq)});
+        try {
+            return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private boolean deleteBlobRows(SQLiteDatabase database, long id) {
+        String[] args = new String[]{String.valueOf(id)};
+        database.beginTransaction();
+        try {
+            database.delete(BLOB_CHUNK_TABLE, "blob_id = ?", args);
+            int count = database.delete(BLOB_TABLE, "_id = ?", args);
+            database.setTransactionSuccessful();
+            return count > 0;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private static ContentValues blobRow(@Nullable Long size) {
+        ContentValues values = new ContentValues(2);
+        values.put(BLOB_SIZE, size);
+        values.put("chunk_size", BLOB_CHUNK_SIZE);
+        return values;
+    }
+
+    /**
+     * Fill the buffer from the stream
+     * @return number of bytes read, less than the buffer only at the end of the stream
+     */
+    private static int readChunk(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read == -1) break;
+            length += read;
+        }
+        return length;
+    }
+
+    /**
+     * Create the blob tables once per database, and remove values left incomplete by an earlier process
+     */
+    private void ensureBlobTables(SQLiteDatabase database) {
+        DBSQLiteOpenHelper helper = sqLiteOpenHelper;
+        if (helper.blobTablesReady) return;
+        synchronized (helper.blobLock) {
+            if (helper.blobTablesReady) return;
+            database.beginTransaction();
+            try {
+                //AUTOINCREMENT, so that the id of a deleted value is never reused
+                database.execSQL("CREATE TABLE IF NOT EXISTS " + BLOB_TABLE
+                        + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " + BLOB_SIZE + " INTEGER, chunk_size INTEGER NOT NULL)");
+                database.execSQL("CREATE TABLE IF NOT EXISTS " + BLOB_CHUNK_TABLE
+                        + " (blob_id INTEGER NOT NULL, seq INTEGER NOT NULL, data BLOB NOT NULL, PRIMARY KEY (blob_id, seq))");
+                //no value is being written before the tables are set up in this process
+                database.execSQL("DELETE FROM " + BLOB_CHUNK_TABLE + " WHERE blob_id IN (SELECT _id FROM " + BLOB_TABLE
+                        + " WHERE " + BLOB_SIZE + " IS NULL)");
+                database.execSQL("DELETE FROM " + BLOB_TABLE + " WHERE " + BLOB_SIZE + " IS NULL");
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+            helper.blobTablesReady = true;
+        }
     }
 
     /**
@@ -434,113 +2168,406 @@ abstract public class DbManPlus {
      * @throws InvalidKeyException
      */
     public long exportDB(String backupPath, String salt, String password) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
-        long transferred = 0;
-
-        //File sd = Environment.getExternalStorageDirectory();
+        return exportDB(backupPath, salt, password, null);
+    }
 
-        String  currentDBPath= db.getPath();
-        File currentDB = new File(currentDBPath);
-        File backupDB = new File(backupPath);
+    /**
+     * Export a consistent snapshot of this database while it stays in use.
+     * <br> The snapshot is written next to the database file first, by VACUUM INTO with SQLite 3.27+, or else
+     * by copying the file in chunks that each block writers only briefly. It is then encrypted into the backup.
+     * @param backupPath external path where to export
+     * @param salt encryption salt
+     * @param password encryption password
+     * @param listener gets the progress of the encryption, or null
+     * @return size of the snapshot
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchPaddingException
+     * @throws InvalidKeyException
+     * @throws IllegalStateException if called inside a transaction
+     */
+    public long exportDB(String backupPath, String salt, String password, @Nullable BackupProgressListener listener)
+            throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+        DbMetrics metrics = sqLiteOpenHelper.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
 
-        FileInputStream src;
-        CipherOutputStream dst;
-        db.beginTransaction();
+        SQLiteDatabase database = this.open();
+        File snapshot = new File(database.getPath() + ".snapshot");
+        try {
+            try {
+                if (database.inTransaction()) throw new IllegalStateException("exportDB cannot run inside a transaction");
+                DbBackup.snapshot(database, this, snapshot, false);
+            } finally {
+                this.close();
+            }
 
-        if(!backupDB.exists()) {
-            backupDB.createNewFile();
+            Cipher cipher = Cipher.getInstance("AES");
+            cipher.init(Cipher.ENCRYPT_MODE, DbBackup.legacyKey(salt, password));
+            CipherOutputStream dst = new CipherOutputStream(new FileOutputStream(backupPath), cipher);
+            try {
+                return DbBackup.copy(snapshot, dst, listener);
+            } finally {
+                dst.close();
+            }
+        } finally {
+            if (snapshot.exists() && !snapshot.delete()) Log.w(TAG, "Could not delete " + snapshot);
+            if (metrics != null) metrics.record(DbMetrics.Op.EXPORT, start);
         }
+    }
 
-        byte[] key = (salt + password).getBytes("UTF-8");
-        MessageDigest sha = MessageDigest.getInstance("SHA-1");
-        key = sha.digest(key);
-        key = Arrays.copyOf(key, 16); // use only first 128 bit
-        SecretKeySpec secretKeySpec = new SecretKeySpec(key, "AES");
-
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec);
-
-        src = new FileInputStream(currentDB);
-        dst = new CipherOutputStream(new FileOutputStream(backupDB), cipher);
-
-        byte[] buffer = new byte[4 * 1024];
-        int read;
+    /**
+     * Export a consistent snapshot of this database (see {@link #exportDB(String, String, String, BackupProgressListener)})
+     * in the chunked backup format.
+     * <br> The database is split into chunks that are compressed, encrypted with AES/CBC and authenticated with
+     * HMAC-SHA256 on all cores. The keys are derived from the salt and password with PBKDF2. On import every chunk
+     * is verified, so corrupt or truncated backups are rejected. {@link #importDB} recognizes both formats.
+     * @param backupPath external path where to export
+     * @param salt encryption salt
+     * @param password encryption password
+     * @param listener gets the progress of the export, or null
+     * @return size of the snapshot
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws IllegalStateException if called inside a transaction
+     */
+    public long exportDBChunked(String backupPath, String salt, String password, @Nullable BackupProgressListener listener)
+            throws IOException, GeneralSecurityException {
+        DbMetrics metrics = sqLiteOpenHelper.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
 
-        while ((read = src.read(buffer)) != -1) {
-                transferred += read;
-                dst.write(buffer, 0, read);
+        SQLiteDatabase database = this.open();
+        File snapshot = new File(database.getPath() + ".snapshot");
+        try {
+            try {
+                if (database.inTransaction()) throw new IllegalStateException("exportDBChunked cannot run inside a transaction");
+                DbBackup.snapshot(database, this, snapshot, false);
+            } finally {
+                this.close();
+            }
 
+            FileOutputStream dst = new FileOutputStream(backupPath);
+            try {
+                return ChunkedBackup.write(snapshot, dst, salt, password, listener);
+            } finally {
+                dst.close();
+            }
+        } finally {
+            if (snapshot.exists() && !snapshot.delete()) Log.w(TAG, "Could not delete " + snapshot);
+            if (metrics != null) metrics.record(DbMetrics.Op.EXPORT, start);
         }
-        dst.flush();
+    }
 
-        db.endTransaction();
+    /**
+     * Back up this database incrementally into a directory. The first backup writes a base with the whole
+     * database, later backups only write the pages that changed since the previous one, as a chain of deltas.
+     * <br> The base has the format of {@link #exportDBChunked}, the deltas and the manifest of the chain are
+     * authenticated the same way. Restore the chain with {@link #importIncremental}.
+     * @param backupDir directory of the backup, created if needed
+     * @param salt encryption salt
+     * @param password encryption password
+     * @param maxDeltas maximum number of deltas before a new base is written, 0 always writes a base
+     * @param listener gets the progress of the backup, or null
+     * @return bytes of the database written to the backup
+     * @throws IOException also if the existing backup is corrupt or was written with another password
+     * @throws GeneralSecurityException
+     * @throws IllegalStateException if called inside a transaction
+     */
+    public long exportIncremental(String backupDir, String salt, String password, int maxDeltas,
+                                  @Nullable BackupProgressListener listener) throws IOException, GeneralSecurityException {
+        DbMetrics metrics = sqLiteOpenHelper.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
 
-        src.close();
-        dst.close();
+        SQLiteDatabase database = this.open();
+        File snapshot = new File(database.getPath() + ".snapshot");
+        try {
+            int pageSize;
+            try {
+                if (database.inTransaction()) throw new IllegalStateException("exportIncremental cannot run inside a transaction");
+                pageSize = (int) DatabaseUtils.longForQuery(database, "PRAGMA page_size", null);
+                //pages must stay where they are to be compared with the previous backup
+                DbBackup.snapshot(database, this, snapshot, true);
+            } finally {
+                this.close();
+            }
+            return IncrementalBackup.export(snapshot, pageSize, new File(backupDir), salt, password, maxDeltas,
+                    listener);
+        } finally {
+            if (snapshot.exists() && !snapshot.delete()) Log.w(TAG, "Could not delete " + snapshot);
+            if (metrics != null) metrics.record(DbMetrics.Op.EXPORT, start);
+        }
+    }
 
-        return transferred;
+    /**
+     * Overwrite this database with an incremental backup, restoring its base and then all of its deltas
+     * (see {@link #exportIncremental})
+     * @param backupDir directory of the backup
+     * @param salt encryption salt
+     * @param password encryption password
+     * @param listener gets the progress of restoring the base, or null
+     * @return database size, 0 if the backup is not a valid and compatible database
+     * @throws IOException also if the backup is corrupt or was written with another password
+     * @throws GeneralSecurityException
+     * @throws IllegalStateException if the database is in use (see {@link #importDB(InputStream, String, String)})
+     */
+    public long importIncremental(String backupDir, String salt, String password, @Nullable BackupProgressListener listener)
+            throws IOException, GeneralSecurityException {
+        checkNotInUse();
+        DbMetrics metrics = sqLiteOpenHelper.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+
+        File staged = stagingFile();
+        boolean keepStaged = false;
+        try {
+            IncrementalBackup.restore(new File(backupDir), salt, password, staged, listener);
+            long transferred = installDatabase(staged);
+            if (metrics != null) metrics.record(DbMetrics.Op.IMPORT, start);
+            return transferred;
+        } catch (StagedImportException e) {
+            keepStaged = true;
+            throw e;
+        } finally {
+            if (!keepStaged) deleteDatabaseFiles(staged);
+        }
     }
 
     /**
-     * Import to this database
+     * Import to this database. Backups of {@link #exportDB} and {@link #exportDBChunked} are both recognized.
+     * <br> The database must not be in use: no open cursors, no running operations on other threads and no
+     * {@link #pin()}. This is checked before the backup is read, and again right before the swap.
      * @param backupStream stream to write to database (NOTE: stream is closed here so no need to close outside)
      * @param salt encryption salt
      * @param password encryption password
-     * @return database size
-     * @throws IOException
+     * @return database size, 0 if the backup is not a valid and compatible database
+     * @throws IOException also if the imported file could not replace the database. The database is left as it
+     *          was and the imported file is kept next to it.
      * @throws NoSuchAlgorithmException
      * @throws NoSuchPaddingException
      * @throws InvalidKeyException
+     * @throws IllegalStateException if the database is in use or this is called inside a transaction
      */
     public long importDB(InputStream backupStream, String salt, String password) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
-        long transferred = 0;
-
-        String  currentDBPath= db.getPath();
-        File currentDB  = new File(currentDBPath);
-        FileOutputStream dst = null;
+        try {
+            checkNotInUse();
+        } catch (IllegalStateException e) {
+            backupStream.close();
+            throw e;
+        }
+        DbMetrics metrics = sqLiteOpenHelper.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
 
-        db.beginTransaction();
+        BufferedInputStream buffered = new BufferedInputStream(backupStream, DbBackup.BUFFER_SIZE);
+        byte[] header = new byte[ChunkedBackup.MAGIC_LENGTH];
+        buffered.mark(header.length);
+        int headerLength = 0;
+        int read;
+        while (headerLength < header.length && (read = buffered.read(header, headerLength, header.length - headerLength)) != -1) {
+            headerLength += read;
+        }
+        buffered.reset();
 
-        byte[] key = (salt + password).getBytes("UTF-8");
-        MessageDigest sha = MessageDigest.getInstance("SHA-1");
-        key = sha.digest(key);
-        key = Arrays.copyOf(key, 16); // use only first 128 bit
-        SecretKeySpec secretKeySpec = new SecretKeySpec(key, "AES");
+        long transferred;
+        if (ChunkedBackup.isChunked(header, headerLength)) {
+            File staged = stagingFile();
+            boolean keepStaged = false;
+            try {
+                try {
+                    ChunkedBackup.read(buffered, salt, password, staged, null);
+                } finally {
+                    buffered.close();
+                }
+                transferred = installDatabase(staged);
+            } catch (StagedImportException e) {
+                keepStaged = true;
+                throw e;
+            } finally {
+                if (!keepStaged) deleteDatabaseFiles(staged);
+            }
+        } else {
+            Cipher cipher = Cipher.getInstance("AES");
+            cipher.init(Cipher.DECRYPT_MODE, DbBackup.legacyKey(salt, password));
 
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.DECRYPT_MODE, secretKeySpec);
+            CipherInputStream src = new CipherInputStream(buffered, cipher);
+            transferred = restoreDatabase(src);
+        }
 
-        CipherInputStream src = new CipherInputStream(backupStream, cipher);
+        if (metrics != null) metrics.record(DbMetrics.Op.IMPORT, start);
+        return transferred;
+    }
 
-        byte[] buffer = new byte[4 * 1024];
-        int read;
-        boolean isFirstBlock = true;
-        boolean toContinue = true;
-
-        while (toContinue && (read = src.read(buffer)) != -1) {
-            if(isFirstBlock) {
-                toContinue = isValidSQLiteDb(buffer);
-                if(toContinue) {
-                    dst = new FileOutputStream(currentDB);
+    /**
+     * Stream a plain database into a staging file and swap it in (see {@link #installDatabase})
+     * @param src stream of the database file, closed here
+     * @return bytes written, 0 if it is not a valid database
+     * @throws IOException
+     */
+    private long restoreDatabase(InputStream src) throws IOException {
+        File staged = stagingFile();
+        boolean keepStaged = false;
+        try {
+            FileOutputStream dst = null;
+            try {
+                byte[] buffer = new byte[DbBackup.BUFFER_SIZE];
+                int read;
+                boolean isFirstBlock = true;
+
+                while ((read = src.read(buffer)) != -1) {
+                    if (isFirstBlock) {
+                        //the header check needs the first 16 bytes
+                        while (read < 16) {
+                            int more = src.read(buffer, read, buffer.length - read);
+                            if (more == -1) break;
+                            read += more;
+                        }
+                        if (read < 16 || !isValidSQLiteDb(buffer)) return 0;
+                        dst = new FileOutputStream(staged);
+                        isFirstBlock = false;
+                    }
+                    dst.write(buffer, 0, read);
                 }
-                isFirstBlock = false;
+            } finally {
+                if (dst != null) dst.close();
+                src.close();
             }
+            return dst != null ? installDatabase(staged) : 0;
+        } catch (StagedImportException e) {
+            keepStaged = true;
+            throw e;
+        } finally {
+            if (!keepStaged) deleteDatabaseFiles(staged);
+        }
+    }
+
+    /**
+     * The imported file could not be renamed over the database. The database is untouched and the imported file
+     * is kept.
+     */
+    private static final class StagedImportException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        StagedImportException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Fail early, before any backup is read, if the database cannot be swapped
+     */
+    private void checkNotInUse() {
+        if (inTransaction()) throw new IllegalStateException("Cannot import inside a transaction");
+        if (sqLiteOpenHelper.counter.get() != 0) {
+            throw new IllegalStateException("Cannot import while the database is in use, close all cursors and unpin it first");
+        }
+    }
+
+    /**
+     * Check a complete database file and atomically replace this database with it.
+     * <br> The file must pass SQLite's quick_check and {@link #onValidateImport}. The database is then
+     * closed on all instances, the file is renamed over it and the database is reopened. Until then,
+     * readers keep using the current database.
+     * @param staged plain database file next to this database
+     * @return size of the database, 0 if it is not valid or compatible
+     * @throws IOException
+     * @throws StagedImportException if the file could not be renamed over the database
+     * @throws IllegalStateException if the database is in use, by an open cursor, a running operation or a pin
+     */
+    private long installDatabase(File staged) throws IOException {
+        byte[] header = new byte[16];
+        RandomAccessFile file = new RandomAccessFile(staged, "rw");
+        try {
+            if (file.length() < header.length) return 0;
+            file.readFully(header);
+            if (!isValidSQLiteDb(header)) return 0;
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
 
-            if (toContinue) {
-                transferred += read;
-                dst.write(buffer, 0, read);
+        if (!checkImport(staged)) return 0;
+
+        DBSQLiteOpenHelper helper = sqLiteOpenHelper;
+        File current = new File(helper.path);
+        long size = staged.length();
+        synchronized (helper.lock) {
+            //with a zero counter, open() has to take the lock, so nobody can start using the database meanwhile
+            checkNotInUse();
+            helper.cancelIdleClose();
+            //closing the last connection checkpoints the WAL into the old file
+            helper.closeDatabase();
+            if (!staged.renameTo(current)) {
+                //the next open() reopens the old database
+                throw new StagedImportException("Cannot replace " + current + ", the import is kept in " + staged);
             }
+            //journals belong to the old file
+            deleteJournals(current);
+            //upgrades an older imported database
+            helper.openDatabase();
+            helper.blobTablesReady = false;
+            //unused again, so it is closed as usual
+            helper.closeWhenIdle();
         }
+        onAllTablesChanged();
+        return size;
+    }
 
-        db.endTransaction();
+    /**
+     * Open a separate read-only connection, configured like the connections of the helper
+     */
+    SQLiteDatabase openReadOnly(String path) {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY);
+        try {
+            onConfigure(db);
+        } catch (RuntimeException e) {
+            db.close();
+            throw e;
+        }
+        return db;
+    }
 
-        if (dst != null) {
-            dst.flush();
-            dst.close();
+    /**
+     * Run the integrity check and {@link #onValidateImport} on an imported database
+     */
+    private boolean checkImport(File staged) {
+        SQLiteDatabase importDb;
+        try {
+            importDb = openReadOnly(staged.getPath());
+        } catch (SQLException e) {
+            Log.e(TAG, "Cannot open imported database", e);
+            return false;
+        }
+        try {
+            String result = DatabaseUtils.stringForQuery(importDb, "PRAGMA quick_check", null);
+            if (!"ok".equalsIgnoreCase(result)) {
+                Log.e(TAG, "Imported database is corrupt: " + result);
+                return false;
+            }
+            if (!onValidateImport(importDb, sqLiteOpenHelper.version)) {
+                Log.e(TAG, "Imported database is not compatible, version " + importDb.getVersion());
+                return false;
+            }
+            return true;
+        } catch (SQLException e) {
+            Log.e(TAG, "Imported database is corrupt", e);
+            return false;
+        } finally {
+            importDb.close();
+            deleteJournals(staged);
         }
-        src.close();
+    }
 
+    private File stagingFile() {
+        return new File(sqLiteOpenHelper.path + ".import");
+    }
 
-        return transferred;
+    private static void deleteJournals(File db) {
+        for (String suffix : new String[]{"-journal", "-wal", "-shm"}) {
+            File journal = new File(db.getPath() + suffix);
+            if (journal.exists() && !journal.delete()) Log.w(TAG, "Could not delete " + journal);
+        }
+    }
+
+    private static void deleteDatabaseFiles(File db) {
+        if (db.exists() && !db.delete()) Log.w(TAG, "Could not delete " + db);
+        deleteJournals(db);
     }
 
     /**
@@ -548,11 +2575,13 @@ abstract public class DbManPlus {
      * @param backupPath path from which to read
      * @param salt encryption salt
      * @param password encryption password
-     * @return database size
-     * @throws IOException
+     * @return database size, 0 if the backup is not a valid and compatible database
+     * @throws IOException also if the imported file could not replace the database
+     *          (see {@link #importDB(InputStream, String, String)})
      * @throws NoSuchAlgorithmException
      * @throws NoSuchPaddingException
      * @throws InvalidKeyException
+     * @throws IllegalStateException if the database is in use or this is called inside a transaction
      */
     public long importDB(String backupPath, String salt, String password) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
         File backupDb = new File(backupPath);
@@ -0,0 +1,417 @@
+package com.vssh.dbmanplus;
+
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Operation metrics of a database, enabled with {@link DbManPlus#setMetrics}.
+ * <br> Records a latency histogram for every operation type, the time spent waiting for the lock that opens and
+ * closes the database, the connection reference count, database open/close cycles and the rows returned per query.
+ * <br> Histograms use power-of-two buckets, so recording is a few atomic increments without allocation.
+ * Without metrics, DbManPlus only checks a field for null.
+ */
+public class DbMetrics {
+    private static final String TAG = "DbMetrics";
+
+    /**
+     * Types of recorded operations
+     */
+    public enum Op {
+        INSERT, BULK_INSERT, UPDATE, UPSERT, DELETE, QUERY, RAW_QUERY, TRANSACTION, EXPORT, IMPORT,
+        /**
+         * Time spent waiting for the lock that opens and closes the database
+         */
+        LOCK_WAIT
+    }
+
+    /**
+     * Gets metric snapshots, see {@link #startReporting}
+     */
+    public interface Reporter {
+        /**
+         * Called on the reporting thread
+         * @param snapshot metrics since the metrics were created or reset
+         */
+        void report(Snapshot snapshot);
+    }
+
+    /**
+     * Reporter writing snapshots to logcat
+     */
+    public static final Reporter LOG_REPORTER = new Reporter() {
+        @Override
+        public void report(Snapshot snapshot) {
+            Log.i(TAG, snapshot.toString());
+        }
+    };
+
+    private final Histogram[] mLatencies = new Histogram[Op.values().length];
+    private final Histogram mRowsPerQuery = new Histogram();
+    private final AtomicLong mOpens = new AtomicLong();
+    private final AtomicLong mCloses = new AtomicLong();
+    private final AtomicInteger mPeakConnections = new AtomicInteger();
+    private volatile AtomicInteger mConnections;
+    private ScheduledExecutorService mReportExecutor;
+
+    public DbMetrics() {
+        for (int i = 0; i < mLatencies.length; i++) mLatencies[i] = new Histogram();
+    }
+
+    /**
+     * Use the reference counter of a database, called by {@link DbManPlus#setMetrics}
+     */
+    void attach(AtomicInteger connections) {
+        mConnections = connections;
+    }
+
+    /**
+     * Record the latency of an operation
+     * @param op operation type
+     * @param startNanos {@link System#nanoTime()} at the start of the operation
+     */
+    public void record(Op op, long startNanos) {
+        mLatencies[op.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record the rows returned by a query
+     * @param rows number of rows
+     */
+    public void recordRows(int rows) {
+        mRowsPerQuery.record(rows);
+    }
+
+    void onConnectionAdded(int count) {
+        while (true) {
+            int peak = mPeakConnections.get();
+            if (count <= peak || mPeakConnections.compareAndSet(peak, count)) return;
+        }
+    }
+
+    void onDatabaseOpened() {
+        mOpens.incrementAndGet();
+    }
+
+    void onDatabaseClosed() {
+        mCloses.incrementAndGet();
+    }
+
+    /**
+     * Clear all recorded values
+     */
+    public void reset() {
+        for (Histogram histogram : mLatencies) histogram.reset();
+        mRowsPerQuery.reset();
+        mOpens.set(0);
+        mCloses.set(0);
+        AtomicInteger connections = mConnections;
+        mPeakConnections.set(connections != null ? connections.get() : 0);
+    }
+
+    /**
+     * @return the current metrics
+     */
+    public Snapshot snapshot() {
+        EnumMap<Op, HistogramSnapshot> latencies = new EnumMap<>(Op.class);
+        for (Op op : Op.values()) latencies.put(op, mLatencies[op.ordinal()].snapshot());
+        AtomicInteger connections = mConnections;
+        return new Snapshot(latencies, mRowsPerQuery.snapshot(), connections != null ? connections.get() : 0,
+                mPeakConnections.get(), mOpens.get(), mCloses.get());
+    }
+
+    /**
+     * Report a snapshot periodically on a background thread. Replaces a running reporter.
+     * @param reporter gets the snapshots
+     * @param periodMillis time between reports
+     */
+    public synchronized void startReporting(final Reporter reporter, long periodMillis) {
+        stopReporting();
+        mReportExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DbManPlus-Metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mReportExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reporter.report(snapshot());
+                } catch (RuntimeException e) {
+                    //keep reporting
+                    Log.e(TAG, "Reporter failed", e);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop reporting started with {@link #startReporting}
+     */
+    public synchronized void stopReporting() {
+        if (mReportExecutor != null) {
+            mReportExecutor.shutdown();
+            mReportExecutor = null;
+        }
+    }
+
+    /**
+     * Histogram of non-negative values in power-of-two buckets
+     */
+    private static final class Histogram {
+        private final AtomicLongArray mBuckets = new AtomicLongArray(HistogramSnapshot.BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) value = 0;
+            mBuckets.incrementAndGet(HistogramSnapshot.bucketOf(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            while (true) {
+                long max = mMax.get();
+                if (value <= max || mMax.compareAndSet(max, value)) break;
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < mBuckets.length(); i++) mBuckets.set(i, 0);
+            mCount.set(0);
+            mSum.set(0);
+            mMax.set(0);
+        }
+
+        HistogramSnapshot snapshot() {
+            long[] buckets = new long[mBuckets.length()];
+            for (int i = 0; i < buckets.length; i++) buckets[i] = mBuckets.get(i);
+            return new HistogramSnapshot(buckets, mCount.get(), mSum.get(), mMax.get());
+        }
+    }
+
+    /**
+     * Recorded values of one histogram. Latencies are in nanoseconds.
+     * <br> Bucket 0 holds the value 0, bucket i holds values from 2^(i-1) to 2^i - 1.
+     */
+    public static final class HistogramSnapshot {
+        static final int BUCKETS = 64;
+
+        private final long[] mBuckets;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        HistogramSnapshot(long[] buckets, long count, long sum, long max) {
+            this.mBuckets = buckets;
+            this.mCount = count;
+            this.mSum = sum;
+            this.mMax = max;
+        }
+
+        static int bucketOf(long value) {
+            return 64 - Long.numberOfLeadingZeros(value);
+        }
+
+        /**
+         * @return number of recorded values
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return sum of recorded values
+         */
+        public long getSum() {
+            return mSum;
+        }
+
+        /**
+         * @return largest recorded value
+         */
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * @return average of recorded values, 0 if there are none
+         */
+        public double getMean() {
+            return mCount == 0 ? 0 : (double) mSum / mCount;
+        }
+
+        /**
+         * @return copy of the bucket counts
+         */
+        public long[] getBuckets() {
+            return mBuckets.clone();
+        }
+
+        /**
+         * Estimate a percentile as the upper bound of the bucket it falls in
+         * @param percentile between 0 and 100
+         * @return upper bound of the value, 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile) {
+            if (mCount == 0) return 0;
+            long rank = (long) Math.ceil(mCount * percentile / 100d);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank && seen > 0) return Math.min(mMax, i == 0 ? 0 : (1L << i) - 1);
+            }
+            return mMax;
+        }
+
+        /**
+         * @return the histogram as a JSON object, with non-empty buckets keyed by their upper bound
+         */
+        public String toJson() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"count\":").append(mCount)
+                    .append(",\"sum\":").append(mSum)
+                    .append(",\"max\":").append(mMax)
+                    .append(",\"p50\":").append(getPercentile(50))
+                    .append(",\"p90\":").append(getPercentile(90))
+                    .append(",\"p99\":").append(getPercentile(99))
+                    .append(",\"buckets\":{");
+            boolean first = true;
+            for (int i = 0; i < mBuckets.length; i++) {
+                if (mBuckets[i] == 0) continue;
+                if (!first) sb.append(',');
+                first = false;
+                sb.append('"').append(i == 0 ? 0 : (1L << i) - 1).append("\":").append(mBuckets[i]);
+            }
+            return sb.append("}}").toString();
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount + " mean=" + (long) getMean() + " p50=" + getPercentile(50)
+                    + " p99=" + getPercentile(99) + " max=" + mMax;
+        }
+    }
+
+    /**
+     * Metrics at one point in time
+     */
+    public static final class Snapshot {
+        private final Map<Op, HistogramSnapshot> mLatencies;
+        private final HistogramSnapshot mRowsPerQuery;
+        private final int mConnections;
+        private final int mPeakConnections;
+        private final long mOpens;
+        private final long mCloses;
+
+        Snapshot(EnumMap<Op, HistogramSnapshot> latencies, HistogramSnapshot rowsPerQuery, int connections,
+                 int peakConnections, long opens, long closes) {
+            this.mLatencies = Collections.unmodifiableMap(latencies);
+            this.mRowsPerQuery = rowsPerQuery;
+            this.mConnections = connections;
+            this.mPeakConnections = peakConnections;
+            this.mOpens = opens;
+            this.mCloses = closes;
+        }
+
+        /**
+         * @param op operation type
+         * @return latencies of the operation in nanoseconds
+         */
+        public HistogramSnapshot getLatency(Op op) {
+            return mLatencies.get(op);
+        }
+
+        /**
+         * @return latencies of all operation types in nanoseconds
+         */
+        public Map<Op, HistogramSnapshot> getLatencies() {
+            return mLatencies;
+        }
+
+        /**
+         * @return rows returned per query
+         */
+        public HistogramSnapshot getRowsPerQuery() {
+            return mRowsPerQuery;
+        }
+
+        /**
+         * @return current value of the connection reference counter
+         */
+        public int getConnections() {
+            return mConnections;
+        }
+
+        /**
+         * @return highest value of the connection reference counter
+         */
+        public int getPeakConnections() {
+            return mPeakConnections;
+        }
+
+        /**
+         * @return number of times the database was opened
+         */
+        public long getOpens() {
+            return mOpens;
+        }
+
+        /**
+         * @return number of times the database was closed
+         */
+        public long getCloses() {
+            return mCloses;
+        }
+
+        /**
+         * Machine-readable form of the snapshot, e.g. to track regressions between runs.
+         * Latencies are in nanoseconds, operations without values are left out.
+         * @return the snapshot as a JSON object
+         */
+        public String toJson() {
+            StringBuilder sb = new StringBuilder("{\"latencies\":{");
+            boolean first = true;
+            for (Map.Entry<Op, HistogramSnapshot> entry : mLatencies.entrySet()) {
+                if (entry.getValue().getCount() == 0) continue;
+                if (!first) sb.append(',');
+                first = false;
+                sb.append('"').append(entry.getKey().name().toLowerCase(Locale.US)).append("\":").append(entry.getValue().toJson());
+            }
+            sb.append("},\"rowsPerQuery\":").append(mRowsPerQuery.toJson())
+                    .append(",\"connections\":").append(mConnections)
+                    .append(",\"peakConnections\":").append(mPeakConnections)
+                    .append(",\"opens\":").append(mOpens)
+                    .append(",\"closes\":").append(mCloses)
+                    .append('}');
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("DbMetrics{");
+            for (Map.Entry<Op, HistogramSnapshot> entry : mLatencies.entrySet()) {
+                if (entry.getValue().getCount() > 0) sb.append(entry.getKey()).append(": ").append(entry.getValue()).append(", ");
+            }
+            sb.append("rowsPerQuery: ").append(mRowsPerQuery)
+                    .append(", connections=").append(mConnections)
+                    .append(", peakConnections=").append(mPeakConnections)
+                    .append(", opens=").append(mOpens)
+                    .append(", closes=").append(mCloses)
+                    .append('}');
+            return sb.toString();
+        }
+    }
+}
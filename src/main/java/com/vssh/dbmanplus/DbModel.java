@@ -2,10 +2,17 @@ package com.vssh.dbmanplus;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * Created by varun on 24.08.15.
@@ -14,6 +21,10 @@ import java.util.ArrayList;
  */
 public abstract class DbModel<T extends DbItem> {
     protected DbManPlus mDbManager;
+    private String[] mColumns;
+    private volatile ItemCache<CachedCursor.Result> mItemCache;
+    private volatile boolean[] mLazy;
+    private volatile String[] mDefaultProjection;
 
     public DbModel(DbManPlus dbManager) {
         this.mDbManager = dbManager;
@@ -25,6 +36,146 @@ public abstract class DbModel<T extends DbItem> {
      */
     public abstract String getTableName();
 
+    /**
+     * Get the primary key column, used to identify rows (e.g. for {@link #queryPage}).
+     * <br> Defaults to {@link BaseColumns#_ID}, override if the table uses another key.
+     * @return primary key column name
+     */
+    protected String getPrimaryKeyColumn() {
+        return BaseColumns._ID;
+    }
+
+    /**
+     * Keep up to maxSize objects by primary key, so that {@link #getById} can skip the database.
+     * <br> Rows read by queries that return all table columns are added, if their primary key is an INTEGER.
+     * Inserts, updates and deletes through this model invalidate the cache. Writes to the table that bypass
+     * this model are not seen, so only enable it if all writes go through the model.
+     * <br> The cache keeps a copy of each row, and {@link #getById} reads a new object from it on every call,
+     * so callers may modify the objects they get.
+     * @param maxSize maximum number of cached objects, 0 disables the cache
+     */
+    public void setItemCacheSize(int maxSize) {
+        mItemCache = maxSize > 0 ? new ItemCache<CachedCursor.Result>(maxSize) : null;
+    }
+
+    /**
+     * Get an object by primary key, from the cache if possible (see {@link #setItemCacheSize})
+     * @param id primary key value
+     * @return object, or null if there is no such row
+     */
+    public @Nullable T getById(long id) {
+        ItemCache<CachedCursor.Result> cache = mItemCache;
+        if (cache != null) {
+            CachedCursor.Result row = cache.get(id);
+            if (row != null) return readItem(row);
+        }
+        ArrayList<T> items = queryAsList(null, getPrimaryKeyColumn() + " = ?", new String[]{String.valueOf(id)}, null);
+        return items.isEmpty() ? null : items.get(0);
+    }
+
+    /**
+     * Read a new object from a cached row
+     */
+    private @Nullable T readItem(CachedCursor.Result row) {
+        Cursor cursor = new CachedCursor(row);
+        try {
+            cursor.moveToFirst();
+            T item = getModelItem();
+            if (item != null) item.readFrom(cursor, ColumnMap.of(cursor, columns()));
+            return item;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Leave large columns out of queries without a projection, and read them only when needed with
+     * {@link #loadColumn}.
+     * <br> Objects read without these columns do not hold their values. Load them before writing such an
+     * object back, or the write stores the empty values.
+     * @param columns columns of {@link #getTableColumns()} to read lazily, none to read all columns again
+     */
+    public void setLazyColumns(String... columns) {
+        String[] all = columns();
+        if (columns == null || columns.length == 0) {
+            mDefaultProjection = null;
+            mLazy = null;
+            return;
+        }
+        boolean[] lazy = new boolean[all.length];
+        for (String column : columns) {
+            int ordinal = Arrays.asList(all).indexOf(column);
+            if (ordinal < 0) throw new IllegalArgumentException("Unknown column " + column);
+            if (column.equals(getPrimaryKeyColumn())) throw new IllegalArgumentException("The primary key cannot be lazy");
+            lazy[ordinal] = true;
+        }
+        ArrayList<String> projection = new ArrayList<>(all.length);
+        for (int i = 0; i < all.length; i++) {
+            if (!lazy[i]) projection.add(all[i]);
+        }
+        mLazy = lazy;
+        mDefaultProjection = projection.toArray(new String[projection.size()]);
+    }
+
+    /**
+     * Read one column of the row of an object, e.g. a column set by {@link #setLazyColumns}.
+     * <br> The row is found by the primary key value of the object, and the value is set the same way a query
+     * sets it. The result is never cached.
+     * @param item object read from this table
+     * @param column column of {@link #getTableColumns()}
+     * @return true if the row still exists
+     */
+    public boolean loadColumn(T item, String column) {
+        String[] columns = columns();
+        int ordinal = Arrays.asList(columns).indexOf(column);
+        if (ordinal < 0) throw new IllegalArgumentException("Unknown column " + column);
+        String key = getPrimaryKeyColumn();
+        Object keyValue = item.getVal(key);
+        if (keyValue == null || keyValue == DbItem.UNCHANGED) {
+            throw new IllegalArgumentException("Item has no value for the primary key " + key);
+        }
+        Cursor cursor = mDbManager.rawQuery("SELECT " + column + " FROM " + getTableName() + " WHERE " + key + " = ?",
+                new String[]{keyValue.toString()});
+        try {
+            if (!cursor.moveToFirst()) return false;
+            item.readFrom(cursor, ColumnMap.single(columns, ordinal));
+            return true;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Projection of queries, leaving out the lazy columns if none was given
+     */
+    private String[] projection(@Nullable String[] projection) {
+        return projection != null ? projection : mDefaultProjection;
+    }
+
+    /**
+     * Drop a row from the object cache after it was written
+     */
+    private void invalidateItem(long id) {
+        ItemCache<CachedCursor.Result> cache = mItemCache;
+        if (cache != null) cache.remove(id);
+    }
+
+    /**
+     * Keep the object cache correct after rows were added
+     */
+    private void invalidateReaders() {
+        ItemCache<CachedCursor.Result> cache = mItemCache;
+        if (cache != null) cache.invalidateReaders();
+    }
+
+    /**
+     * Drop all rows from the object cache after a write that may touch any row
+     */
+    private void invalidateItems() {
+        ItemCache<CachedCursor.Result> cache = mItemCache;
+        if (cache != null) cache.clear();
+    }
+
     /**
      * Check if values should be inserted into the database
      * @param values a map from column names to new column values. null is a
@@ -33,6 +184,17 @@ public abstract class DbModel<T extends DbItem> {
      */
     public abstract boolean continueInsert(ContentValues values);
 
+    /**
+     * Check if an item should be inserted into the database
+     * <br> The default implementation checks {@link #continueInsert(ContentValues)} with the values of the item.
+     * Override it to check the item directly, so that inserting items does not build {@link ContentValues} at all.
+     * @param item an object of the appropriate type.
+     * @return true, if it should continue to insert
+     */
+    protected boolean continueInsert(T item) {
+        return continueInsert(item.toContentValues(columns()));
+    }
+
     /**
      * Insert into this table
      * @param values a map from column names to new column values. null is a
@@ -43,6 +205,7 @@ public abstract class DbModel<T extends DbItem> {
         long result = -1;
         if(this.continueInsert(values)) {
             result = mDbManager.insert(this.getTableName(), values);
+            invalidateItem(result);
         }
         return result;
     }
@@ -53,7 +216,12 @@ public abstract class DbModel<T extends DbItem> {
      * @return row ID if successful, else -1
      */
     public long insert(T item) {
-        return insert(item.toContentValues(getTableColumns()));
+        long result = -1;
+        if (this.continueInsert(item)) {
+            result = mDbManager.insert(this.getTableName(), columns(), item);
+            invalidateItem(result);
+        }
+        return result;
     }
 
     /**
@@ -63,7 +231,39 @@ public abstract class DbModel<T extends DbItem> {
      * @return number of rows
      */
     public int bulkInsert(ContentValues[] values) {
-        return mDbManager.bulkInsert(this.getTableName(), values);
+        try {
+            return mDbManager.bulkInsert(this.getTableName(), values);
+        } finally {
+            invalidateReaders();
+        }
+    }
+
+    /**
+     * Insert items from a stream, committing a transaction every chunkSize rows.
+     * See {@link DbManPlus#bulkInsert(String, Iterator, int, DbManPlus.BulkInsertListener)}
+     * @param items objects of the appropriate type, read once
+     * @param chunkSize maximum number of rows per transaction
+     * @param listener progress and failure callbacks, may be null
+     * @return number of rows inserted
+     */
+    public long bulkInsert(Iterator<T> items, int chunkSize, @Nullable DbManPlus.BulkInsertListener listener) {
+        try {
+            return mDbManager.bulkInsert(this.getTableName(), columns(), items, chunkSize, listener);
+        } finally {
+            invalidateReaders();
+        }
+    }
+
+    /**
+     * Insert items from a stream, committing a transaction every chunkSize rows.
+     * See {@link DbManPlus#bulkInsert(String, Iterator, int, DbManPlus.BulkInsertListener)}
+     * @param items objects of the appropriate type
+     * @param chunkSize maximum number of rows per transaction
+     * @param listener progress and failure callbacks, may be null
+     * @return number of rows inserted
+     */
+    public long bulkInsert(Iterable<T> items, int chunkSize, @Nullable DbManPlus.BulkInsertListener listener) {
+        return bulkInsert(items.iterator(), chunkSize, listener);
     }
 
     /**
@@ -78,7 +278,11 @@ public abstract class DbModel<T extends DbItem> {
      * @return number of rows
      */
     public int update(ContentValues values, String where, String[] whereArgs) {
-        return mDbManager.update(this.getTableName(), values, where, whereArgs);
+        try {
+            return mDbManager.update(this.getTableName(), values, where, whereArgs);
+        } finally {
+            invalidateItems();
+        }
     }
 
     /**
@@ -92,7 +296,51 @@ public abstract class DbModel<T extends DbItem> {
      * @return number of rows
      */
     public int update(T item, String where, String[] whereArgs) {
-        return mDbManager.update(this.getTableName(), item.toContentValues(getTableColumns()), where, whereArgs);
+        try {
+            return mDbManager.update(this.getTableName(), columns(), item, where, whereArgs);
+        } finally {
+            invalidateItems();
+        }
+    }
+
+    /**
+     * Insert rows, or update the existing rows with the same key, as one transaction.
+     * See {@link DbManPlus#upsert(String, String[], ContentValues[])}
+     * @param keyColumns columns of the primary key or of a unique index of this table
+     * @param values the rows. Columns missing from a row keep their value when the row is updated.
+     * @return number of inserted and updated rows
+     */
+    public DbManPlus.UpsertResult upsert(String[] keyColumns, ContentValues[] values) {
+        try {
+            return mDbManager.upsert(this.getTableName(), keyColumns, values);
+        } finally {
+            invalidateItems();
+        }
+    }
+
+    /**
+     * Insert items, or update the existing rows with the same primary key, as one transaction.
+     * See {@link DbManPlus#upsert(String, String[], ContentValues[])}
+     * @param items objects of the appropriate type
+     * @return number of inserted and updated rows
+     */
+    public DbManPlus.UpsertResult upsert(Iterable<T> items) {
+        return upsert(items, new String[]{getPrimaryKeyColumn()});
+    }
+
+    /**
+     * Insert items, or update the existing rows with the same key, as one transaction.
+     * See {@link DbManPlus#upsert(String, String[], ContentValues[])}
+     * @param items objects of the appropriate type
+     * @param keyColumns columns of the primary key or of a unique index of this table
+     * @return number of inserted and updated rows
+     */
+    public DbManPlus.UpsertResult upsert(Iterable<T> items, String[] keyColumns) {
+        try {
+            return mDbManager.upsert(this.getTableName(), columns(), keyColumns, items);
+        } finally {
+            invalidateItems();
+        }
     }
 
     /**
@@ -105,7 +353,94 @@ public abstract class DbModel<T extends DbItem> {
      * @return number of rows
      */
     public int delete(String where, String[] whereArgs) {
-        return mDbManager.delete(this.getTableName(), where, whereArgs);
+        try {
+            return mDbManager.delete(this.getTableName(), where, whereArgs);
+        } finally {
+            invalidateItems();
+        }
+    }
+
+    /**
+     * Delete the rows with the given primary keys as one transaction.
+     * See {@link DbManPlus#deleteByKeys(String, String, long[])}
+     * @param ids primary keys of the rows
+     * @return number of rows
+     */
+    public int deleteByIds(long... ids) {
+        try {
+            return mDbManager.deleteByKeys(this.getTableName(), getPrimaryKeyColumn(), ids);
+        } finally {
+            invalidateItems();
+        }
+    }
+
+    /**
+     * Delete the rows with the given primary keys as one transaction.
+     * See {@link DbManPlus#deleteByKeys(String, String, long[])}
+     * @param ids primary keys of the rows
+     * @return number of rows
+     */
+    public int deleteByIds(Collection<Long> ids) {
+        return deleteByIds(toArray(ids));
+    }
+
+    /**
+     * Update the rows with the given primary keys to the same values as one transaction.
+     * See {@link DbManPlus#updateByKeys(String, String, long[], ContentValues)}
+     * @param ids primary keys of the rows
+     * @param values a map from column names to new column values. null is a
+     *            valid value that will be translated to NULL.
+     * @return number of rows
+     */
+    public int updateByIds(long[] ids, ContentValues values) {
+        try {
+            return mDbManager.updateByKeys(this.getTableName(), getPrimaryKeyColumn(), ids, values);
+        } finally {
+            invalidateItems();
+        }
+    }
+
+    /**
+     * Update each row with its own values as one transaction
+     * @param values new values by primary key of the row. Columns missing from the values keep their value.
+     * @return number of rows
+     */
+    public int updateByIds(Map<Long, ContentValues> values) {
+        String primaryKey = getPrimaryKeyColumn();
+        ContentValues[] rows = new ContentValues[values.size()];
+        int i = 0;
+        for (Map.Entry<Long, ContentValues> entry : values.entrySet()) {
+            ContentValues row = new ContentValues(entry.getValue());
+            row.put(primaryKey, entry.getKey());
+            rows[i++] = row;
+        }
+        try {
+            return mDbManager.updateRows(this.getTableName(), new String[]{primaryKey}, rows);
+        } finally {
+            invalidateItems();
+        }
+    }
+
+    /**
+     * Update the row of each item, found by its primary key, as one transaction
+     * @param items objects of the appropriate type
+     * @return number of rows
+     */
+    public int update(Iterable<T> items) {
+        try {
+            return mDbManager.updateRows(this.getTableName(), columns(), new String[]{getPrimaryKeyColumn()}, items);
+        } finally {
+            invalidateItems();
+        }
+    }
+
+    private static long[] toArray(Collection<Long> ids) {
+        long[] array = new long[ids.size()];
+        int i = 0;
+        for (Long id : ids) {
+            array[i++] = id;
+        }
+        return array;
     }
 
     /**
@@ -176,7 +511,7 @@ public abstract class DbModel<T extends DbItem> {
      * @return list of Objects returned by {@link #getModelItem}
      */
     public ArrayList<T> queryAsList(String[] projection, String where, String[] whereArgs, String sortOrder) {
-        Cursor cursor = this.query(projection, where, whereArgs, null, null, sortOrder, null);
+        Cursor cursor = this.query(projection(projection), where, whereArgs, null, null, sortOrder, null);
         ArrayList<T> list = cursorToList(cursor);
         cursor.close();
 
@@ -211,27 +546,257 @@ public abstract class DbModel<T extends DbItem> {
      */
     public ArrayList<T> queryAsList(String[] projection, String where, String[] whereArgs, @Nullable String groupBy,
                         @Nullable String having, String sortOrder, @Nullable String limit) {
-        Cursor cursor = mDbManager.query(this.getTableName(), projection, where, whereArgs, groupBy, having, sortOrder, limit);
+        Cursor cursor = mDbManager.query(this.getTableName(), projection(projection), where, whereArgs, groupBy, having, sortOrder, limit);
         ArrayList<T> list = cursorToList(cursor);
         cursor.close();
 
         return list;
     }
 
+    /**
+     * Query table (@link #query) and iterate over the rows as objects, reading one row at a time
+     * @param projection A list of which columns to return. Passing
+     *   null will return all columns, which is discouraged to prevent
+     *   reading data from storage that isn't going to be used.
+     * @param where A filter declaring which rows to return,
+     *   formatted as an SQL WHERE clause (excluding the WHERE
+     *   itself). Passing null will return all rows for the given URL.
+     * @param whereArgs You may include ?s in the where clause, which
+     *            will be replaced by the values from whereArgs. The values
+     *            will be bound as Strings.
+     * @param sortOrder How to order the rows, formatted as an SQL
+     *   ORDER BY clause (excluding the ORDER BY itself). Passing null
+     *   will use the default sort order, which may be unordered.
+     * @param reuseItem read every row into the same object instead of creating one per row
+     * @return iterator over Objects returned by {@link #getModelItem}, close it if not read to the end
+     */
+    public ItemIterator<T> queryAsIterator(String[] projection, String where, String[] whereArgs, String sortOrder,
+                                           boolean reuseItem) {
+        return queryAsIterator(projection, where, whereArgs, null, null, sortOrder, null, reuseItem);
+    }
+
+    /**
+     * Query table (@link #query) and iterate over the rows as objects, reading one row at a time
+     * @param projection A list of which columns to return. Passing
+     *   null will return all columns, which is discouraged to prevent
+     *   reading data from storage that isn't going to be used.
+     * @param where A filter declaring which rows to return,
+     *   formatted as an SQL WHERE clause (excluding the WHERE
+     *   itself). Passing null will return all rows for the given URL.
+     * @param whereArgs You may include ?s in the where clause, which
+     *            will be replaced by the values from whereArgs. The values
+     *            will be bound as Strings.
+     * @param groupBy A filter declaring how to group rows, formatted
+     *   as an SQL GROUP BY clause (excluding the GROUP BY
+     *   itself). Passing null will cause the rows to not be grouped.
+     * @param having A filter declare which row groups to include in
+     *   the cursor, if row grouping is being used, formatted as an
+     *   SQL HAVING clause (excluding the HAVING itself).  Passing
+     *   null will cause all row groups to be included, and is
+     *   required when row grouping is not being used.
+     * @param sortOrder How to order the rows, formatted as an SQL
+     *   ORDER BY clause (excluding the ORDER BY itself). Passing null
+     *   will use the default sort order, which may be unordered.
+     * @param limit Limits the number of rows returned by the query,
+     *   formatted as LIMIT clause. Passing null denotes no LIMIT clause.
+     * @param reuseItem read every row into the same object instead of creating one per row
+     * @return iterator over Objects returned by {@link #getModelItem}, close it if not read to the end
+     */
+    public ItemIterator<T> queryAsIterator(String[] projection, String where, String[] whereArgs, @Nullable String groupBy,
+                                           @Nullable String having, String sortOrder, @Nullable String limit, boolean reuseItem) {
+        Cursor cursor = mDbManager.query(this.getTableName(), projection(projection), where, whereArgs, groupBy, having, sortOrder, limit);
+        return cursorToIterator(cursor, reuseItem);
+    }
+
+    /**
+     * Query one page of this table, using keyset pagination.
+     * <br> Instead of an OFFSET, each page continues after the sort value and primary key of the last row
+     * of the previous page, so deep pages are as fast as the first one when the sort column is indexed.
+     * Rows with equal sort values are ordered by primary key. The sort column must not contain NULLs.
+     * @param projection A list of which columns to return. Passing
+     *   null will return all columns. The sort and primary key columns are added if missing.
+     * @param where A filter declaring which rows to return,
+     *   formatted as an SQL WHERE clause (excluding the WHERE
+     *   itself). Passing null will return all rows for the given URL.
+     * @param whereArgs You may include ?s in the where clause, which
+     *            will be replaced by the values from whereArgs. The values
+     *            will be bound as Strings.
+     * @param sortColumn column to sort by, or null to sort by primary key only
+     * @param descending sort in descending order
+     * @param pageSize maximum number of objects on the page
+     * @param after token of the previous page ({@link Page#getNextToken()}), or null for the first page
+     * @return the page
+     */
+    public Page<T> queryPage(String[] projection, String where, String[] whereArgs, @Nullable String sortColumn,
+                             boolean descending, int pageSize, @Nullable Page.Token after) {
+        if (pageSize < 1) throw new IllegalArgumentException("pageSize must be positive");
+        String key = getPrimaryKeyColumn();
+        String direction = descending ? " DESC" : " ASC";
+        String comparison = descending ? " < ?" : " > ?";
+
+        StringBuilder selection = new StringBuilder();
+        ArrayList<String> args = new ArrayList<>();
+        if (!TextUtils.isEmpty(where)) {
+            selection.append('(').append(where).append(')');
+            if (whereArgs != null) args.addAll(Arrays.asList(whereArgs));
+        }
+        if (after != null) {
+            if (selection.length() > 0) selection.append(" AND ");
+            if (sortColumn != null) {
+                selection.append('(').append(sortColumn).append(comparison).append(" OR (").append(sortColumn)
+                        .append(" = ? AND ").append(key).append(comparison).append("))");
+                args.add(after.sortValue);
+                args.add(after.sortValue);
+            } else {
+                selection.append(key).append(comparison);
+            }
+            args.add(after.key);
+        }
+        String sortOrder = sortColumn != null ? sortColumn + direction + ", " + key + direction : key + direction;
+
+        projection = projection(projection);
+        if (projection != null) {
+            projection = withColumn(withColumn(projection, key), sortColumn);
+        }
+
+        Cursor cursor = mDbManager.query(this.getTableName(), projection, selection.length() > 0 ? selection.toString() : null,
+                args.toArray(new String[args.size()]), null, null, sortOrder, String.valueOf(pageSize + 1));
+        try {
+            ArrayList<T> items = cursorToList(cursor, pageSize);
+            Page.Token next = null;
+            if (cursor.getCount() > pageSize && cursor.moveToPosition(pageSize - 1)) {
+                String sortValue = sortColumn != null ? keyValue(cursor, cursor.getColumnIndexOrThrow(sortColumn)) : null;
+                next = new Page.Token(sortValue, keyValue(cursor, cursor.getColumnIndexOrThrow(key)));
+            }
+            return new Page<>(items, next);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Read a key value as a string that binds back to the same value
+     */
+    private static String keyValue(Cursor cursor, int index) {
+        switch (cursor.getType(index)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return Long.toString(cursor.getLong(index));
+            case Cursor.FIELD_TYPE_FLOAT:
+                return Double.toString(cursor.getDouble(index));
+            default:
+                return cursor.getString(index);
+        }
+    }
+
+    static String[] withColumn(String[] projection, @Nullable String column) {
+        if (column == null || Arrays.asList(projection).contains(column)) return projection;
+        String[] extended = Arrays.copyOf(projection, projection.length + 1);
+        extended[projection.length] = column;
+        return extended;
+    }
+
+    /**
+     * Observe a query of this table. The listener gets the initial result, and then a new result with the
+     * rows inserted, removed and changed (by primary key) every time this table is written through DbManPlus.
+     * <br> Queries run on a background thread. A burst of writes triggers one query once no write has come in
+     * for debounceMillis, or at the latest after 5 x debounceMillis. Results without changes are not delivered.
+     * @param projection A list of which columns to return. Passing
+     *   null will return all columns. The primary key column is added if missing.
+     * @param where A filter declaring which rows to return,
+     *   formatted as an SQL WHERE clause (excluding the WHERE
+     *   itself). Passing null will return all rows for the given URL.
+     * @param whereArgs You may include ?s in the where clause, which
+     *            will be replaced by the values from whereArgs. The values
+     *            will be bound as Strings.
+     * @param sortOrder How to order the rows, formatted as an SQL
+     *   ORDER BY clause (excluding the ORDER BY itself). Passing null
+     *   will use the default sort order, which may be unordered.
+     * @param debounceMillis how long to wait for more writes before querying again
+     * @param callbackExecutor executor to deliver results on (e.g. one posting to the main thread),
+     *            or null to deliver them on the background thread
+     * @param listener gets the results
+     * @return the live query, close it to stop observing
+     */
+    public LiveQuery<T> observe(String[] projection, String where, String[] whereArgs, String sortOrder,
+                                long debounceMillis, @Nullable Executor callbackExecutor, LiveQuery.Listener<T> listener) {
+        projection = projection(projection);
+        if (projection != null) projection = withColumn(projection, getPrimaryKeyColumn());
+        LiveQuery<T> liveQuery = new LiveQuery<>(this, projection, where, whereArgs, sortOrder, debounceMillis,
+                callbackExecutor, listener);
+        liveQuery.start();
+        return liveQuery;
+    }
+
+    /**
+     * Check if two objects for the same row hold the same values, to find changed rows for {@link #observe}.
+     * <br> The default implementation compares the values of {@link DbItem#toContentValues}.
+     * @param oldItem object from the previous result
+     * @param newItem object from the new result
+     * @return true if nothing changed
+     */
+    protected boolean areContentsTheSame(T oldItem, T newItem) {
+        ContentValues oldValues = oldItem.toContentValues(columns());
+        ContentValues newValues = newItem.toContentValues(columns());
+        if (oldValues.size() != newValues.size()) return false;
+        for (String column : oldValues.keySet()) {
+            if (!newValues.containsKey(column)) return false;
+            Object oldValue = oldValues.get(column);
+            Object newValue = newValues.get(column);
+            if (oldValue instanceof byte[] && newValue instanceof byte[]) {
+                if (!Arrays.equals((byte[]) oldValue, (byte[]) newValue)) return false;
+            } else if (oldValue == null ? newValue != null : !oldValue.equals(newValue)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Iterate over the rows of a cursor as objects (as described in {@link #getModelItem})
+     * @param cursor input cursor, closed by the iterator
+     * @param reuseItem read every row into the same object instead of creating one per row
+     * @return iterator over Objects returned by {@link #getModelItem}
+     */
+    public ItemIterator<T> cursorToIterator(Cursor cursor, boolean reuseItem) {
+        return new ItemIterator<>(this, cursor, reuseItem);
+    }
+
     /**
      * Retrieve an Object list (as described in {@link #getModelItem})
      * @param cursor input cursor
      * @return list of Objects returned by {@link #getModelItem}
      */
     public ArrayList<T> cursorToList(Cursor cursor) {
-        ArrayList<T> list = new ArrayList<>();
+        return cursorToList(cursor, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Retrieve an Object list from the first rows of a cursor
+     */
+    private ArrayList<T> cursorToList(Cursor cursor, int maxRows) {
+        ColumnMap columnMap = ColumnMap.of(cursor, columns());
+
+        //only complete rows read outside of a transaction may be cached, lazy columns are never complete
+        ItemCache<CachedCursor.Result> cache = mItemCache;
+        int keyIndex = -1;
+        if (cache != null && !mDbManager.inTransaction() && columnMap.hasAll(mLazy)) {
+            keyIndex = cursor.getColumnIndex(getPrimaryKeyColumn());
+        }
+        long generation = keyIndex != -1 ? cache.generation() : 0;
+
+        ArrayList<T> list = new ArrayList<>(Math.min(Math.max(cursor.getCount(), 0), maxRows));
         if(cursor.moveToFirst()) {
-            while (!cursor.isAfterLast()) {
+            while (!cursor.isAfterLast() && cursor.getPosition() < maxRows) {
                 int pos = cursor.getPosition();
 
                 T item = getModelItem();
                 if (item != null) {
-                    item.fromCursor(cursor, getTableColumns());
+                    //getById looks up INTEGER keys, other keys would collide as numbers.
+                    //The cache keeps its own copy of the row, the item belongs to the caller.
+                    if (keyIndex != -1 && cursor.getType(keyIndex) == Cursor.FIELD_TYPE_INTEGER) {
+                        cache.put(generation, cursor.getLong(keyIndex), CachedCursor.Result.ofRow(cursor));
+                    }
+                    item.readFrom(cursor, columnMap);
                     list.add(item);
                 }
 
@@ -256,7 +821,20 @@ public abstract class DbModel<T extends DbItem> {
     /**
      * Get table columns as an array
      * REMEMBER to include id column
+     * <br> Called once per model, the result is reused for every row.
      * @return array of column names
      */
     protected abstract @NonNull String[] getTableColumns();
+
+    /**
+     * Table columns, cached from {@link #getTableColumns()}
+     */
+    final String[] columns() {
+        String[] columns = mColumns;
+        if (columns == null) {
+            columns = getTableColumns();
+            mColumns = columns;
+        }
+        return columns;
+    }
 }
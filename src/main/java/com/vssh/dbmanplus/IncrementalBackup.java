@@ -0,0 +1,454 @@
+package com.vssh.dbmanplus;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Locale;
+
+/**
+ * Incremental backups of a database file in a backup directory.
+ * <br> The directory holds a base backup in the format of {@link DbManPlus#exportDBChunked}, a chain of delta
+ * files with the pages changed since the previous backup, and a manifest with a hash of every page. The
+ * manifest and the deltas are split into records that are encrypted and authenticated like the chunks of
+ * {@link ChunkedBackup}, with keys derived from a salt stored in the manifest. Each record of a delta is
+ * authenticated together with the base ID, the delta sequence and its own position, so records cannot be
+ * moved between files.
+ * <br> Files are written before the manifest that refers to them, so an interrupted backup leaves the previous
+ * chain intact. Each base is named after its ID, so a new base never replaces the one the manifest refers to,
+ * and files of the previous chain are only deleted once the new manifest is in place.
+ */
+final class IncrementalBackup {
+    private static final String TAG = "IncrementalBackup";
+
+    static final String MANIFEST_FILE = "manifest";
+    private static final String BASE_PREFIX = "base-";
+    private static final String DELTA_PREFIX = "delta-";
+    private static final String DELTA_SUFFIX = ".bak";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int MANIFEST_MAGIC = 0x44424d4d; //DBMM
+    private static final int DELTA_MAGIC = 0x44424d44; //DBMD
+    private static final int VERSION = 1;
+    private static final int HASH_SIZE = 20;
+    /**
+     * Upper bound for the plain size of a record of pages in a delta
+     */
+    private static final int RECORD_SIZE = 1024 * 1024;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private IncrementalBackup() {}
+
+    /**
+     * Contents of the manifest
+     */
+    private static final class Manifest {
+        final long baseId;
+        final int sequence;
+        final int pageSize;
+        final byte[] hashes;
+        final byte[] backupSalt;
+        final int iterations;
+        /**
+         * Keys of the manifest and the deltas of this chain
+         */
+        final ChunkedBackup.Keys keys;
+
+        Manifest(long baseId, int sequence, int pageSize, byte[] hashes, byte[] backupSalt, int iterations,
+                 ChunkedBackup.Keys keys) {
+            this.baseId = baseId;
+            this.sequence = sequence;
+            this.pageSize = pageSize;
+            this.hashes = hashes;
+            this.backupSalt = backupSalt;
+            this.iterations = iterations;
+            this.keys = keys;
+        }
+
+        int pageCount() {
+            return hashes.length / HASH_SIZE;
+        }
+    }
+
+    /**
+     * Back up a snapshot of the database. Writes a new base if there is none yet, if the page size changed or if
+     * the chain already has maxDeltas deltas. Otherwise only the pages that changed are written.
+     * @param snapshot consistent copy of the database file with its original page layout
+     * @param pageSize page size of the database
+     * @param dir backup directory
+     * @param maxDeltas maximum length of the delta chain
+     * @return bytes of the database written to the backup
+     */
+    static long export(File snapshot, int pageSize, File dir, String salt, String password, int maxDeltas,
+                       @Nullable DbManPlus.BackupProgressListener listener) throws IOException, GeneralSecurityException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        byte[] hashes = hashPages(snapshot, pageSize);
+        Manifest previous = readManifest(dir, salt, password);
+        if (previous == null || previous.pageSize != pageSize || previous.sequence >= maxDeltas
+                || !baseFile(dir, previous.baseId).isFile()) {
+            return writeBase(snapshot, pageSize, hashes, dir, salt, password, listener);
+        }
+        return writeDelta(snapshot, pageSize, hashes, previous, dir, listener);
+    }
+
+    private static long writeBase(File snapshot, int pageSize, byte[] hashes, File dir, String salt, String password,
+                                  @Nullable DbManPlus.BackupProgressListener listener) throws IOException, GeneralSecurityException {
+        long baseId = random.nextLong();
+        File base = baseFile(dir, baseId);
+        File temp = new File(dir, base.getName() + TEMP_SUFFIX);
+        OutputStream out = new FileOutputStream(temp);
+        long written;
+        try {
+            written = ChunkedBackup.write(snapshot, out, salt, password, listener);
+        } finally {
+            out.close();
+        }
+        rename(temp, base);
+
+        byte[] backupSalt = new byte[ChunkedBackup.SALT_LENGTH];
+        random.nextBytes(backupSalt);
+        ChunkedBackup.Keys keys = new ChunkedBackup.Keys(salt, password, backupSalt, ChunkedBackup.ITERATIONS);
+        writeManifest(dir, new Manifest(baseId, 0, pageSize, hashes, backupSalt, ChunkedBackup.ITERATIONS, keys));
+
+        //the old chain is useless once the manifest refers to the new base. The backup is complete already,
+        //so a file that cannot be deleted now is only logged, and deleted by a later base.
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if ((name.startsWith(DELTA_PREFIX) || (name.startsWith(BASE_PREFIX) && !file.equals(base)))
+                        && file.exists() && !file.delete()) {
+                    Log.w(TAG, "Could not delete " + file);
+                }
+            }
+        }
+        return written;
+    }
+
+    private static long writeDelta(File snapshot, int pageSize, byte[] hashes, Manifest previous, File dir,
+                                   @Nullable DbManPlus.BackupProgressListener listener)
+            throws IOException, GeneralSecurityException {
+        int pageCount = hashes.length / HASH_SIZE;
+        int changed = 0;
+        for (int page = 0; page < pageCount; page++) {
+            if (isChanged(hashes, previous.hashes, page)) changed++;
+        }
+
+        int sequence = previous.sequence + 1;
+        File temp = new File(dir, deltaName(sequence) + TEMP_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), DbBackup.BUFFER_SIZE));
+        long written = 0;
+        try {
+            int index = 0;
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(headerBytes);
+            header.writeInt(DELTA_MAGIC);
+            header.writeInt(pageSize);
+            header.writeInt(pageCount);
+            header.writeInt(changed);
+            writeRecord(out, previous.keys, recordId(previous.baseId, sequence, index++), headerBytes.toByteArray());
+
+            FileInputStream in = new FileInputStream(snapshot);
+            try {
+                FileChannel channel = in.getChannel();
+                ByteBuffer page = ByteBuffer.allocate(pageSize);
+                int pagesPerRecord = Math.max(1, RECORD_SIZE / (4 + pageSize));
+                ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(pagesPerRecord * (4 + pageSize));
+                DataOutputStream record = new DataOutputStream(recordBytes);
+                int pages = 0;
+                long total = (long) changed * pageSize;
+                for (int i = 0; i < pageCount; i++) {
+                    if (!isChanged(hashes, previous.hashes, i)) continue;
+                    page.clear();
+                    readFully(channel, page, (long) i * pageSize);
+                    record.writeInt(i);
+                    record.write(page.array(), 0, pageSize);
+                    if (++pages == pagesPerRecord) {
+                        writeRecord(out, previous.keys, recordId(previous.baseId, sequence, index++), recordBytes.toByteArray());
+                        recordBytes.reset();
+                        pages = 0;
+                    }
+                    written += pageSize;
+                    if (listener != null) listener.onProgress(written, total);
+                }
+                if (pages > 0) {
+                    writeRecord(out, previous.keys, recordId(previous.baseId, sequence, index), recordBytes.toByteArray());
+                }
+            } finally {
+                in.close();
+            }
+        } finally {
+            out.close();
+        }
+        rename(temp, new File(dir, deltaName(sequence)));
+
+        writeManifest(dir, new Manifest(previous.baseId, sequence, pageSize, hashes, previous.backupSalt,
+                previous.iterations, previous.keys));
+        return written;
+    }
+
+    /**
+     * Rebuild the database file from the base and all deltas of the chain
+     * @param dir backup directory
+     * @param target plain database file to write
+     * @return size of the restored database
+     */
+    static long restore(File dir, String salt, String password, File target, @Nullable DbManPlus.BackupProgressListener listener)
+            throws IOException, GeneralSecurityException {
+        Manifest manifest = readManifest(dir, salt, password);
+        if (manifest == null) throw new FileNotFoundException("No backup in " + dir);
+        File base = baseFile(dir, manifest.baseId);
+        if (!base.isFile()) throw new FileNotFoundException("Missing base backup " + base);
+
+        InputStream in = new BufferedInputStream(new FileInputStream(base), DbBackup.BUFFER_SIZE);
+        try {
+            ChunkedBackup.read(in, salt, password, target, listener);
+        } finally {
+            in.close();
+        }
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            for (int sequence = 1; sequence <= manifest.sequence; sequence++) {
+                applyDelta(new File(dir, deltaName(sequence)), manifest, sequence, file);
+            }
+            file.setLength((long) manifest.pageCount() * manifest.pageSize);
+            return file.length();
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void applyDelta(File delta, Manifest manifest, int sequence, RandomAccessFile file)
+            throws IOException, GeneralSecurityException {
+        int pageSize = manifest.pageSize;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(delta), DbBackup.BUFFER_SIZE));
+        try {
+            int index = 0;
+            DataInputStream header = new DataInputStream(new ByteArrayInputStream(
+                    readRecord(in, delta, manifest.keys, recordId(manifest.baseId, sequence, index++))));
+            if (header.readInt() != DELTA_MAGIC || header.readInt() != pageSize) {
+                throw new IOException(delta + " does not belong to this backup");
+            }
+            int pageCount = header.readInt();
+            int changed = header.readInt();
+            //the last delta was written with the hashes of the manifest
+            if (pageCount < 0 || pageCount > Integer.MAX_VALUE / HASH_SIZE || changed < 0 || changed > pageCount
+                    || (sequence == manifest.sequence && pageCount != manifest.pageCount())) {
+                throw new IOException(delta + " is corrupt");
+            }
+
+            byte[] page = new byte[pageSize];
+            int applied = 0;
+            while (applied < changed) {
+                byte[] record = readRecord(in, delta, manifest.keys, recordId(manifest.baseId, sequence, index++));
+                if (record.length == 0 || record.length % (4 + pageSize) != 0
+                        || record.length / (4 + pageSize) > changed - applied) {
+                    throw new IOException(delta + " is corrupt");
+                }
+                DataInputStream pages = new DataInputStream(new ByteArrayInputStream(record));
+                for (int i = record.length / (4 + pageSize); i > 0; i--) {
+                    int pageNumber = pages.readInt();
+                    if (pageNumber < 0 || pageNumber >= pageCount) throw new IOException(delta + " is corrupt");
+                    pages.readFully(page);
+                    file.seek((long) pageNumber * pageSize);
+                    file.write(page);
+                    applied++;
+                }
+            }
+            if (in.read() != -1) throw new IOException(delta + " is corrupt");
+            file.setLength((long) pageCount * pageSize);
+        } catch (EOFException e) {
+            throw new IOException(delta + " is truncated", e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * SHA-1 hash of every page of a file, concatenated
+     */
+    private static byte[] hashPages(File file, int pageSize) throws IOException, GeneralSecurityException {
+        MessageDigest sha = MessageDigest.getInstance("SHA-1");
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size % pageSize != 0) throw new IOException("Database size is not a multiple of the page size");
+            long pageCount = size / pageSize;
+            if (pageCount * HASH_SIZE > Integer.MAX_VALUE) throw new IOException("Database too large");
+            byte[] hashes = new byte[(int) pageCount * HASH_SIZE];
+
+            int pagesPerRead = Math.max(1, DbBackup.BUFFER_SIZE / pageSize);
+            ByteBuffer buffer = ByteBuffer.allocate(pagesPerRead * pageSize);
+            long page = 0;
+            while (page < pageCount) {
+                int pages = (int) Math.min(pagesPerRead, pageCount - page);
+                buffer.clear();
+                buffer.limit(pages * pageSize);
+                readFully(channel, buffer, page * pageSize);
+                for (int i = 0; i < pages; i++) {
+                    sha.update(buffer.array(), i * pageSize, pageSize);
+                    System.arraycopy(sha.digest(), 0, hashes, (int) (page + i) * HASH_SIZE, HASH_SIZE);
+                }
+                page += pages;
+            }
+            return hashes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isChanged(byte[] hashes, byte[] previousHashes, int page) {
+        int offset = page * HASH_SIZE;
+        if (offset + HASH_SIZE > previousHashes.length) return true;
+        for (int i = offset; i < offset + HASH_SIZE; i++) {
+            if (hashes[i] != previousHashes[i]) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the manifest, or null if there is none
+     * @throws IOException if the manifest is corrupt or was written with another password
+     */
+    private static @Nullable Manifest readManifest(File dir, String salt, String password) throws IOException, GeneralSecurityException {
+        File file = new File(dir, MANIFEST_FILE);
+        if (!file.isFile()) return null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+                DataOutputStream header = new DataOutputStream(headerBytes);
+                if (in.readInt() != MANIFEST_MAGIC) throw new IOException("Unknown format");
+                header.writeInt(MANIFEST_MAGIC);
+                int version = in.readInt();
+                if (version != VERSION) throw new IOException("Unsupported version " + version);
+                header.writeInt(version);
+                int iterations = in.readInt();
+                //the header is not authenticated yet, so the key derivation must not trust it
+                if (iterations < 1 || iterations > ChunkedBackup.MAX_ITERATIONS) throw new IOException("Invalid header");
+                header.writeInt(iterations);
+                byte[] backupSalt = new byte[ChunkedBackup.SALT_LENGTH];
+                in.readFully(backupSalt);
+                header.write(backupSalt);
+
+                ChunkedBackup.Keys keys = new ChunkedBackup.Keys(salt, password, backupSalt, iterations);
+                DataInputStream body = new DataInputStream(new ByteArrayInputStream(
+                        readRecord(in, file, keys, headerBytes.toByteArray())));
+                long baseId = body.readLong();
+                int sequence = body.readInt();
+                int pageSize = body.readInt();
+                int hashesLength = body.readInt();
+                if (sequence < 0 || pageSize <= 0 || hashesLength < 0 || hashesLength % HASH_SIZE != 0
+                        || hashesLength != body.available()) {
+                    throw new IOException("Invalid manifest");
+                }
+                byte[] hashes = new byte[hashesLength];
+                body.readFully(hashes);
+                return new Manifest(baseId, sequence, pageSize, hashes, backupSalt, iterations, keys);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            //the manifest is replaced by a rename, so it is never left half written
+            throw new IOException("Cannot read " + file + ", it is corrupt or the password is wrong", e);
+        }
+    }
+
+    private static void writeManifest(File dir, Manifest manifest) throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(MANIFEST_MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(manifest.iterations);
+        header.write(manifest.backupSalt);
+
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(manifest.hashes.length + 20);
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+        body.writeLong(manifest.baseId);
+        body.writeInt(manifest.sequence);
+        body.writeInt(manifest.pageSize);
+        body.writeInt(manifest.hashes.length);
+        body.write(manifest.hashes);
+
+        File temp = new File(dir, MANIFEST_FILE + TEMP_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.write(headerBytes.toByteArray());
+            writeRecord(out, manifest.keys, headerBytes.toByteArray(), bodyBytes.toByteArray());
+        } finally {
+            out.close();
+        }
+        rename(temp, new File(dir, MANIFEST_FILE));
+    }
+
+    /**
+     * Associated data of a record of a delta: the chain, the delta and the position in it
+     */
+    private static byte[] recordId(long baseId, int sequence, int index) {
+        return ByteBuffer.allocate(16).putLong(baseId).putInt(sequence).putInt(index).array();
+    }
+
+    private static void writeRecord(DataOutputStream out, ChunkedBackup.Keys keys, byte[] associated, byte[] plain)
+            throws IOException, GeneralSecurityException {
+        byte[] sealed = ChunkedBackup.seal(keys, associated, plain);
+        out.writeInt(sealed.length);
+        out.write(sealed);
+    }
+
+    private static byte[] readRecord(DataInputStream in, File file, ChunkedBackup.Keys keys, byte[] associated)
+            throws IOException, GeneralSecurityException {
+        int length = in.readInt();
+        if (length < 0 || length > file.length()) throw new IOException(file + " is corrupt");
+        byte[] sealed = new byte[length];
+        in.readFully(sealed);
+        try {
+            return ChunkedBackup.unseal(keys, associated, sealed);
+        } catch (IOException e) {
+            throw new IOException(file + " is corrupt or does not belong to this backup", e);
+        }
+    }
+
+    private static File baseFile(File dir, long baseId) {
+        return new File(dir, BASE_PREFIX + String.format(Locale.US, "%016x", baseId) + DELTA_SUFFIX);
+    }
+
+    private static String deltaName(int sequence) {
+        return DELTA_PREFIX + String.format(Locale.US, "%06d", sequence) + DELTA_SUFFIX;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) throw new EOFException();
+            position += read;
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            if (from.exists() && !from.delete()) Log.w(TAG, "Could not delete " + from);
+            throw new IOException("Cannot rename " + from + " to " + to);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.vssh.dbmanplus;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bounded LRU of cached rows by primary key.
+ * <br> Every invalidation bumps a generation, so a reader that started before a write can tell that the rows
+ * it read may be stale and must not be cached.
+ */
+final class ItemCache<T> {
+    private final LinkedHashMap<Long, T> mItems;
+    private final int mMaxSize;
+    private long mGeneration;
+
+    ItemCache(int maxSize) {
+        this.mMaxSize = maxSize;
+        this.mItems = new LinkedHashMap<>(Math.min(maxSize, 64), 0.75f, true);
+    }
+
+    synchronized T get(long key) {
+        return mItems.get(key);
+    }
+
+    /**
+     * Current generation, to pass to {@link #put} after reading
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache an item read while the cache was at the given generation. Ignored if it was invalidated since.
+     */
+    synchronized void put(long generation, long key, T item) {
+        if (generation != mGeneration) return;
+        mItems.put(key, item);
+        Iterator<Long> iterator = mItems.keySet().iterator();
+        while (mItems.size() > mMaxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Stop readers that started before now from caching what they read, without dropping entries.
+     * Enough for writes that only add rows.
+     */
+    synchronized void invalidateReaders() {
+        mGeneration++;
+    }
+
+    synchronized void remove(long key) {
+        mGeneration++;
+        mItems.remove(key);
+    }
+
+    synchronized void clear() {
+        mGeneration++;
+        mItems.clear();
+    }
+}
@@ -0,0 +1,92 @@
+package com.vssh.dbmanplus;
+
+import android.database.Cursor;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazy iteration over the rows of a query as objects of a {@link DbModel}.
+ * <br> Rows are read from the cursor one at a time, so a scan of a large table does not build a list of all rows.
+ * The cursor is closed when the last row has been read, or when {@link #close()} is called.
+ * Close it explicitly when the iteration stops early.
+ * <br> Can be iterated only once.
+ */
+public class ItemIterator<T extends DbItem> implements Iterator<T>, Iterable<T>, Closeable {
+    private final DbModel<T> mModel;
+    private final Cursor mCursor;
+    private final ColumnMap mColumnMap;
+    private final boolean mReuseItem;
+    private T mItem;
+    private T mNext;
+    private boolean mClosed;
+
+    /**
+     * @param model model creating the objects
+     * @param cursor query result, closed by this iterator
+     * @param reuseItem read every row into the same object instead of creating one per row
+     */
+    ItemIterator(DbModel<T> model, Cursor cursor, boolean reuseItem) {
+        this.mModel = model;
+        this.mCursor = cursor;
+        this.mColumnMap = ColumnMap.of(cursor, model.columns());
+        this.mReuseItem = reuseItem;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (mNext == null && !mClosed) {
+            if (!mCursor.moveToNext()) {
+                close();
+                break;
+            }
+
+            int pos = mCursor.getPosition();
+            T item = mReuseItem && mItem != null ? mItem : mModel.getModelItem();
+            if (item != null) {
+                item.readFrom(mCursor, mColumnMap);
+                mItem = item;
+                mNext = item;
+            }
+            if (pos != mCursor.getPosition()) {
+                mCursor.moveToPosition(pos);
+            }
+        }
+        return mNext != null;
+    }
+
+    /**
+     * Get the next object. If the iterator reuses its object, the returned object is only valid until the
+     * next call to {@link #hasNext()} or {@link #next()}.
+     * @return the next object
+     */
+    @Override
+    public T next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        T item = mNext;
+        mNext = null;
+        return item;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return this;
+    }
+
+    /**
+     * Close the underlying cursor and stop the iteration
+     */
+    @Override
+    public void close() {
+        if (mClosed) return;
+        mClosed = true;
+        mNext = null;
+        mCursor.close();
+    }
+}
@@ -0,0 +1,301 @@
+package com.vssh.dbmanplus;
+
+import android.database.Cursor;
+import android.util.Log;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Query of a {@link DbModel} that runs again when its table is written, and reports the rows that were
+ * inserted, removed and changed since the previous result (see {@link DbModel#observe}).
+ */
+public class LiveQuery<T extends DbItem> implements Closeable {
+    private static final String TAG = "LiveQuery";
+    private static final int MAX_DEBOUNCE_FACTOR = 5;
+
+    private static final ScheduledExecutorService queryExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "DbManPlus-LiveQuery");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Gets the results of a live query
+     */
+    public interface Listener<T extends DbItem> {
+        /**
+         * Called with the initial result, and then with every changed result
+         * @param items the current result, in query order
+         * @param diff changes since the previous result. For the initial result all items are inserted.
+         */
+        void onResult(List<T> items, Diff<T> diff);
+
+        /**
+         * Called if a query failed. Observing continues with the next write.
+         * @param e the failure
+         */
+        void onError(Exception e);
+    }
+
+    /**
+     * Rows inserted, removed and changed between two results, matched by primary key
+     */
+    public static final class Diff<T> {
+        private final List<T> mInserted;
+        private final List<T> mRemoved;
+        private final List<T> mChanged;
+
+        Diff(List<T> inserted, List<T> removed, List<T> changed) {
+            this.mInserted = Collections.unmodifiableList(inserted);
+            this.mRemoved = Collections.unmodifiableList(removed);
+            this.mChanged = Collections.unmodifiableList(changed);
+        }
+
+        /**
+         * @return new objects for rows that were not in the previous result
+         */
+        public List<T> getInserted() {
+            return mInserted;
+        }
+
+        /**
+         * @return previous objects for rows that are no longer in the result
+         */
+        public List<T> getRemoved() {
+            return mRemoved;
+        }
+
+        /**
+         * @return new objects for rows whose values changed
+         */
+        public List<T> getChanged() {
+            return mChanged;
+        }
+
+        /**
+         * @return true if nothing was inserted, removed or changed
+         */
+        public boolean isEmpty() {
+            return mInserted.isEmpty() && mRemoved.isEmpty() && mChanged.isEmpty();
+        }
+    }
+
+    private final DbModel<T> mModel;
+    private final String[] mProjection;
+    private final String mWhere;
+    private final String[] mWhereArgs;
+    private final String mSortOrder;
+    private final long mDebounceMillis;
+    private final Executor mCallbackExecutor;
+    private final Listener<T> mListener;
+    private final String mTableName;
+
+    private final DbManPlus.TableObserver mObserver = new DbManPlus.TableObserver() {
+        @Override
+        public void onTableChanged(@Nullable String tableName) {
+            if (tableName == null || tableName.equals(mTableName)) scheduleQuery();
+        }
+    };
+
+    private final Runnable mQueryTask = new Runnable() {
+        @Override
+        public void run() {
+            runQuery();
+        }
+    };
+
+    //guarded by this
+    private boolean mScheduled;
+    private long mFirstChange;
+    private long mLastChange;
+    private volatile boolean mClosed;
+
+    //only used on the query thread
+    private HashMap<Object, T> mPrevious;
+
+    LiveQuery(DbModel<T> model, String[] projection, String where, String[] whereArgs, String sortOrder,
+              long debounceMillis, @Nullable Executor callbackExecutor, Listener<T> listener) {
+        this.mModel = model;
+        this.mProjection = projection;
+        this.mWhere = where;
+        this.mWhereArgs = whereArgs;
+        this.mSortOrder = sortOrder;
+        this.mDebounceMillis = debounceMillis;
+        this.mCallbackExecutor = callbackExecutor;
+        this.mListener = listener;
+        this.mTableName = QueryCache.normalize(model.getTableName());
+    }
+
+    void start() {
+        mModel.mDbManager.addTableObserver(mObserver);
+        synchronized (this) {
+            mScheduled = true;
+        }
+        queryExecutor.execute(mQueryTask);
+    }
+
+    /**
+     * Stop observing. A result that is already being delivered may still arrive.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        mModel.mDbManager.removeTableObserver(mObserver);
+    }
+
+    private void scheduleQuery() {
+        if (mClosed) return;
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (!mScheduled) mFirstChange = now;
+            mLastChange = now;
+            if (mScheduled) return;
+            mScheduled = true;
+        }
+        queryExecutor.schedule(mQueryTask, mDebounceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void runQuery() {
+        if (mClosed) return;
+
+        //wait until writes stop for the debounce time, but not longer than the maximum delay
+        long debounce = TimeUnit.MILLISECONDS.toNanos(mDebounceMillis);
+        long now = System.nanoTime();
+        synchronized (this) {
+            long quietUntil = mLastChange + debounce;
+            long latest = mFirstChange + debounce * MAX_DEBOUNCE_FACTOR;
+            if (mPrevious != null && now < quietUntil && now < latest) {
+                long delay = Math.min(quietUntil, latest) - now;
+                queryExecutor.schedule(mQueryTask, delay, TimeUnit.NANOSECONDS);
+                return;
+            }
+            //writes from now on need another query
+            mScheduled = false;
+        }
+
+        final ArrayList<T> items = new ArrayList<>();
+        HashMap<Object, T> current;
+        try {
+            current = query(items);
+        } catch (Exception e) {
+            deliverError(e);
+            return;
+        }
+
+        ArrayList<T> inserted = new ArrayList<>();
+        ArrayList<T> changed = new ArrayList<>();
+        ArrayList<T> removed = new ArrayList<>();
+        HashMap<Object, T> previous = mPrevious != null ? mPrevious : new HashMap<Object, T>();
+        for (Map.Entry<Object, T> entry : current.entrySet()) {
+            T old = previous.get(entry.getKey());
+            if (old == null) inserted.add(entry.getValue());
+            else if (!mModel.areContentsTheSame(old, entry.getValue())) changed.add(entry.getValue());
+        }
+        for (Map.Entry<Object, T> entry : previous.entrySet()) {
+            if (!current.containsKey(entry.getKey())) removed.add(entry.getValue());
+        }
+
+        boolean initial = mPrevious == null;
+        mPrevious = current;
+        final Diff<T> diff = new Diff<>(sortByResult(inserted, items), removed, sortByResult(changed, items));
+        if (initial || !diff.isEmpty()) deliver(Collections.unmodifiableList(items), diff);
+    }
+
+    /**
+     * Run the query, collecting the objects in order and by primary key
+     */
+    private HashMap<Object, T> query(ArrayList<T> items) {
+        HashMap<Object, T> byKey = new HashMap<>();
+        Cursor cursor = mModel.query(mProjection, mWhere, mWhereArgs, mSortOrder);
+        try {
+            ColumnMap columnMap = ColumnMap.of(cursor, mModel.columns());
+            int keyIndex = cursor.getColumnIndexOrThrow(mModel.getPrimaryKeyColumn());
+            while (cursor.moveToNext()) {
+                int pos = cursor.getPosition();
+                T item = mModel.getModelItem();
+                if (item != null) {
+                    Object key = keyOf(cursor, keyIndex);
+                    item.readFrom(cursor, columnMap);
+                    items.add(item);
+                    byKey.put(key, item);
+                }
+                if (pos != cursor.getPosition()) cursor.moveToPosition(pos);
+            }
+        } finally {
+            cursor.close();
+        }
+        return byKey;
+    }
+
+    /**
+     * Primary key value of the current row, compared by its stored type so that TEXT keys do not collide
+     * as numbers. Rows without a key never match, they are reported as removed and inserted.
+     */
+    private static Object keyOf(Cursor cursor, int keyIndex) {
+        switch (cursor.getType(keyIndex)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(keyIndex);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(keyIndex);
+            case Cursor.FIELD_TYPE_STRING:
+                return cursor.getString(keyIndex);
+            case Cursor.FIELD_TYPE_BLOB:
+                return ByteBuffer.wrap(cursor.getBlob(keyIndex));
+            default:
+                return new Object();
+        }
+    }
+
+    /**
+     * Order a subset of the result the way it appears in the result
+     */
+    private static <T> List<T> sortByResult(ArrayList<T> subset, ArrayList<T> result) {
+        if (subset.size() < 2) return subset;
+        IdentityHashMap<T, Boolean> members = new IdentityHashMap<>();
+        for (T item : subset) members.put(item, Boolean.TRUE);
+        ArrayList<T> ordered = new ArrayList<>(subset.size());
+        for (T item : result) {
+            if (members.containsKey(item)) ordered.add(item);
+        }
+        return ordered;
+    }
+
+    private void deliver(final List<T> items, final Diff<T> diff) {
+        Runnable delivery = new Runnable() {
+            @Override
+            public void run() {
+                if (!mClosed) mListener.onResult(items, diff);
+            }
+        };
+        if (mCallbackExecutor != null) mCallbackExecutor.execute(delivery);
+        else delivery.run();
+    }
+
+    private void deliverError(final Exception e) {
+        Log.w(TAG, "query of " + mTableName + " failed", e);
+        Runnable delivery = new Runnable() {
+            @Override
+            public void run() {
+                if (!mClosed) mListener.onError(e);
+            }
+        };
+        if (mCallbackExecutor != null) mCallbackExecutor.execute(delivery);
+        else delivery.run();
+    }
+}
@@ -0,0 +1,91 @@
+package com.vssh.dbmanplus;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * One page of a keyset paginated query (see {@link DbModel#queryPage}).
+ */
+public class Page<T extends DbItem> {
+    private final List<T> mItems;
+    private final Token mNextToken;
+
+    Page(List<T> items, @Nullable Token nextToken) {
+        this.mItems = items;
+        this.mNextToken = nextToken;
+    }
+
+    /**
+     * Get the objects on this page
+     * @return list of objects, at most the requested page size
+     */
+    public List<T> getItems() {
+        return mItems;
+    }
+
+    /**
+     * Get the token to pass to {@link DbModel#queryPage} for the following page
+     * @return token, or null if this is the last page
+     */
+    public @Nullable Token getNextToken() {
+        return mNextToken;
+    }
+
+    /**
+     * Check if there are more rows after this page
+     * @return true if there is a next page
+     */
+    public boolean hasNext() {
+        return mNextToken != null;
+    }
+
+    /**
+     * Position after the last row of a page: its sort column value and its primary key.
+     * Only valid for queries with the same selection and sort order.
+     */
+    public static final class Token {
+        final String sortValue;
+        final String key;
+
+        Token(@Nullable String sortValue, @NonNull String key) {
+            this.sortValue = sortValue;
+            this.key = key;
+        }
+
+        /**
+         * Encode this token, e.g. to keep it across configuration changes
+         * @return encoded token for {@link #decode}
+         */
+        public String encode() {
+            if (sortValue == null) return "k" + key;
+            return "s" + sortValue.length() + ":" + sortValue + key;
+        }
+
+        /**
+         * Decode a token returned by {@link #encode}
+         * @param encoded encoded token
+         * @return the token
+         * @throws IllegalArgumentException if encoded is not a valid token
+         */
+        public static Token decode(String encoded) {
+            try {
+                if (encoded.startsWith("k")) return new Token(null, encoded.substring(1));
+                if (encoded.startsWith("s")) {
+                    int colon = encoded.indexOf(':');
+                    int length = Integer.parseInt(encoded.substring(1, colon));
+                    return new Token(encoded.substring(colon + 1, colon + 1 + length), encoded.substring(colon + 1 + length));
+                }
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("invalid page token: " + encoded, e);
+            }
+            throw new IllegalArgumentException("invalid page token: " + encoded);
+        }
+
+        @Override
+        public String toString() {
+            return encode();
+        }
+    }
+}
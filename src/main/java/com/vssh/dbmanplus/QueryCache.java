@@ -0,0 +1,270 @@
+package com.vssh.dbmanplus;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Cache of materialized query results for one database, bounded by their estimated heap size.
+ * <br> Each table has a version that is bumped whenever the table is written. A result is only cached if the
+ * versions of its tables did not change while it was read, and it is dropped when any of its tables is written.
+ * <br> Only writes to a table itself are seen, so views, tables that triggers may write and tables changed by
+ * foreign key actions are never cached (see {@link #isCacheable}).
+ */
+final class QueryCache {
+    /**
+     * Larger results are returned as a normal cursor and not cached
+     */
+    static final int MAX_ROWS = 2000;
+    /**
+     * Number of recent queries remembered as too large, so they are not copied again on every miss
+     */
+    private static final int MAX_OVERSIZED = 64;
+
+    private static final Pattern TABLE_SEPARATOR = Pattern.compile("\\s*,\\s*|\\s+join\\s+", Pattern.CASE_INSENSITIVE);
+    private static final Pattern SUBQUERY = Pattern.compile("\\bselect\\b", Pattern.CASE_INSENSITIVE);
+
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(32, 0.75f, true);
+    private final HashMap<String, Long> mTableVersions = new HashMap<>();
+    private final HashMap<String, Boolean> mCacheableTables = new HashMap<>();
+    private final LinkedHashMap<String, Long> mOversized = new LinkedHashMap<>(16, 0.75f, true);
+    private final long mMaxBytes;
+    private long mBytes;
+    private long mGlobalVersion;
+
+    QueryCache(long maxBytes) {
+        this.mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Get the tables a query reads
+     * @return normalized table names, or null if the query cannot be cached (e.g. it has a subquery)
+     */
+    static @Nullable String[] tablesOf(String tableNames, String selection, String groupBy, String having) {
+        if (tableNames == null || tableNames.indexOf('(') != -1) return null;
+        if (selection != null && SUBQUERY.matcher(selection).find()) return null;
+        if (groupBy != null && SUBQUERY.matcher(groupBy).find()) return null;
+        if (having != null && SUBQUERY.matcher(having).find()) return null;
+
+        String[] sources = TABLE_SEPARATOR.split(tableNames.trim());
+        String[] tables = new String[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            //drop aliases, ON clauses and join keywords
+            String source = sources[i].trim();
+            int end = 0;
+            while (end < source.length() && !Character.isWhitespace(source.charAt(end))) end++;
+            tables[i] = normalize(source.substring(0, end));
+        }
+        return tables;
+    }
+
+    /**
+     * Normalize a table name the way writes and queries refer to it
+     */
+    static String normalize(String tableName) {
+        String name = tableName.trim();
+        if (name.length() > 1 && "\"`[".indexOf(name.charAt(0)) != -1) {
+            name = name.substring(1, name.length() - 1);
+        }
+        return name.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Build the cache key of a query
+     */
+    static String key(String sql, String[] selectionArgs) {
+        StringBuilder key = new StringBuilder(sql);
+        if (selectionArgs != null) {
+            for (String arg : selectionArgs) {
+                //\u0000 cannot appear in SQL text, \u0001 marks a null argument
+                key.append('\u0000').append(arg != null ? arg : "\u0001");
+            }
+        }
+        return key.toString();
+    }
+
+    synchronized @Nullable CachedCursor.Result get(String key) {
+        Entry entry = mEntries.get(key);
+        return entry != null ? entry.result : null;
+    }
+
+    /**
+     * Get the combined version of the given tables. It grows whenever one of them is written.
+     */
+    synchronized long version(String[] tables) {
+        long version = mGlobalVersion;
+        for (String table : tables) {
+            Long tableVersion = mTableVersions.get(table);
+            if (tableVersion != null) version += tableVersion;
+        }
+        return version;
+    }
+
+    /**
+     * Check that the cache sees every write that can change the given tables. Views, tables that appear in a
+     * trigger and tables with foreign key actions can change without a write to them through DbManPlus.
+     * <br> The answer for each table is kept until {@link #invalidateAll}, which schema changes go through.
+     * @param db open database to read the schema from
+     */
+    boolean isCacheable(SQLiteDatabase db, String[] tables) {
+        for (String table : tables) {
+            Boolean cacheable;
+            synchronized (this) {
+                cacheable = mCacheableTables.get(table);
+            }
+            if (cacheable == null) {
+                cacheable = isPlainTable(db, table);
+                synchronized (this) {
+                    mCacheableTables.put(table, cacheable);
+                }
+            }
+            if (!cacheable) return false;
+        }
+        return true;
+    }
+
+    private static boolean isPlainTable(SQLiteDatabase db, String table) {
+        try {
+            //views and temporary tables are not in the main schema as tables
+            if (DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master WHERE type = 'table' AND lower(name) = ?",
+                    new String[]{table}) == 0) {
+                return false;
+            }
+            //a trigger on any table may write this one. Matching the name anywhere in the trigger is conservative.
+            String pattern = "%" + table + "%";
+            if (DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master WHERE type = 'trigger' AND sql LIKE ?",
+                    new String[]{pattern}) > 0
+                    || DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_temp_master WHERE type = 'trigger' AND sql LIKE ?",
+                    new String[]{pattern}) > 0) {
+                return false;
+            }
+            //ON DELETE / ON UPDATE actions change this table when its parent is written
+            Cursor foreignKeys = db.rawQuery("PRAGMA foreign_key_list(\"" + table.replace("\"", "\"\"") + "\")", null);
+            try {
+                int onUpdate = foreignKeys.getColumnIndex("on_update");
+                int onDelete = foreignKeys.getColumnIndex("on_delete");
+                while (foreignKeys.moveToNext()) {
+                    if (hasAction(foreignKeys.getString(onUpdate)) || hasAction(foreignKeys.getString(onDelete))) return false;
+                }
+            } finally {
+                foreignKeys.close();
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private static boolean hasAction(String action) {
+        return !"NO ACTION".equalsIgnoreCase(action) && !"RESTRICT".equalsIgnoreCase(action);
+    }
+
+    /**
+     * Materialize a query result and cache it if it is small enough
+     * @param cursor the query result, closed here if it is materialized
+     * @param version {@link #version} of the tables, taken before the query ran
+     * @return cursor to return to the caller
+     */
+    Cursor cache(String key, String[] tables, long version, Cursor cursor) {
+        //nothing is copied if the result could not be kept anyway
+        if (cursor.getCount() > MAX_ROWS || isStale(key, tables, version)) return cursor;
+        CachedCursor.Result result;
+        try {
+            //a single result may use at most a quarter of the budget
+            result = CachedCursor.Result.of(cursor, mMaxBytes / 4);
+        } catch (RuntimeException e) {
+            cursor.close();
+            throw e;
+        }
+        if (result == null) {
+            synchronized (this) {
+                mOversized.put(key, version);
+                if (mOversized.size() > MAX_OVERSIZED) {
+                    Iterator<String> eldest = mOversized.keySet().iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+            cursor.moveToPosition(-1);
+            return cursor;
+        }
+        cursor.close();
+        put(key, tables, version, result);
+        return new CachedCursor(result);
+    }
+
+    /**
+     * @return true if the tables were written since the query ran, or the same result was too large before
+     */
+    private synchronized boolean isStale(String key, String[] tables, long version) {
+        if (version != version(tables)) return true;
+        Long oversized = mOversized.get(key);
+        return oversized != null && oversized == version;
+    }
+
+    private synchronized void put(String key, String[] tables, long version, CachedCursor.Result result) {
+        if (version != version(tables)) return;
+
+        Entry previous = mEntries.put(key, new Entry(tables, result));
+        if (previous != null) mBytes -= previous.result.bytes;
+        mBytes += result.bytes;
+
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mBytes > mMaxBytes && iterator.hasNext()) {
+            mBytes -= iterator.next().result.bytes;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Drop the results that read a table, after the table was written
+     * @param tableName table as passed to the write
+     */
+    synchronized void invalidate(String tableName) {
+        String table = normalize(tableName);
+        Long version = mTableVersions.get(table);
+        mTableVersions.put(table, version != null ? version + 1 : 1);
+
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            for (String t : entry.tables) {
+                if (t.equals(table)) {
+                    mBytes -= entry.result.bytes;
+                    iterator.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop all results, after a write to unknown tables
+     */
+    synchronized void invalidateAll() {
+        mGlobalVersion++;
+        mEntries.clear();
+        //the schema may have changed
+        mCacheableTables.clear();
+        mBytes = 0;
+    }
+
+    private static final class Entry {
+        final String[] tables;
+        final CachedCursor.Result result;
+
+        Entry(String[] tables, CachedCursor.Result result) {
+            this.tables = tables;
+            this.result = result;
+        }
+    }
+}
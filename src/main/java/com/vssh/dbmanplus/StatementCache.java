@@ -0,0 +1,96 @@
+package com.vssh.dbmanplus;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU of compiled statements for one database, keyed by their SQL.
+ * <br> A statement is removed from the cache while it is in use, so concurrent callers never share
+ * bindings and no lock is held while the statement executes.
+ */
+final class StatementCache {
+    static final int DEFAULT_SIZE = 16;
+
+    private final LinkedHashMap<String, SQLiteStatement> mStatements = new LinkedHashMap<>(DEFAULT_SIZE, 0.75f, true);
+    private SQLiteDatabase mDatabase;
+    private int mMaxSize;
+
+    StatementCache(int maxSize) {
+        this.mMaxSize = maxSize;
+    }
+
+    /**
+     * Take a compiled statement out of the cache, compiling it if needed.
+     * Give it back with {@link #release} when done.
+     * @param database database to compile on
+     * @param sql statement SQL
+     * @return compiled statement owned by the caller
+     */
+    SQLiteStatement acquire(SQLiteDatabase database, String sql) {
+        synchronized (this) {
+            if (mDatabase != database) {
+                //the database was reopened, statements of the old one are useless
+                closeAll();
+                mDatabase = database;
+            }
+            SQLiteStatement statement = mStatements.remove(sql);
+            if (statement != null) return statement;
+        }
+        return database.compileStatement(sql);
+    }
+
+    /**
+     * Give back a statement taken with {@link #acquire}
+     * @param database database the statement was compiled on
+     * @param sql statement SQL
+     * @param statement the statement
+     */
+    void release(SQLiteDatabase database, String sql, SQLiteStatement statement) {
+        statement.clearBindings();
+        synchronized (this) {
+            if (mDatabase == database && mMaxSize > 0) {
+                SQLiteStatement previous = mStatements.put(sql, statement);
+                if (previous != null && previous != statement) previous.close();
+                trimToSize();
+                return;
+            }
+        }
+        statement.close();
+    }
+
+    /**
+     * Change the maximum number of cached statements
+     * @param maxSize new size, 0 disables caching
+     */
+    synchronized void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+        trimToSize();
+    }
+
+    /**
+     * Close all cached statements. Call when the database is closed.
+     */
+    synchronized void clear() {
+        closeAll();
+        mDatabase = null;
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, SQLiteStatement>> iterator = mStatements.entrySet().iterator();
+        while (mStatements.size() > mMaxSize && iterator.hasNext()) {
+            iterator.next().getValue().close();
+            iterator.remove();
+        }
+    }
+
+    private void closeAll() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+    }
+}
@@ -0,0 +1,252 @@
+package com.vssh.dbmanplus;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronous write queue for DbManPlus with group commit.
+ * <br> Writes submitted from any thread are executed by a single writer thread, which merges everything
+ * queued into one transaction per batch. A batch is committed when it reaches the maximum batch size or
+ * when its first write has waited for the maximum latency, whichever comes first.
+ * <br> Each write returns a {@link Future} that completes after its batch is committed, with the row ID or
+ * row count of the write. If the commit fails, all futures of the batch fail.
+ * <br> A write that throws is not committed: its batch is rolled back, the future of that write fails with
+ * its exception, and the other writes of the batch are run again in a new transaction. Writes may therefore
+ * run more than once, so they should only change the database.
+ */
+public class WriteQueue {
+    private final DbManPlus mDbManager;
+    private final int mMaxBatchSize;
+    private final long mMaxLatencyNanos;
+    private final LinkedBlockingQueue<PendingWrite<?>> mQueue = new LinkedBlockingQueue<>();
+    private final PendingWrite<Void> mShutdown = new PendingWrite<>(new Callable<Void>() {
+        @Override
+        public Void call() {
+            return null;
+        }
+    });
+    private final Thread mWriter;
+    private boolean mShutdownRequested;
+
+    /**
+     * Create a write queue and start its writer thread
+     * @param dbManager database to write to
+     * @param maxBatchSize maximum number of writes committed in one transaction
+     * @param maxLatencyMillis how long the first write of a batch may wait for more writes to arrive.
+     *            0 commits whatever is queued without waiting.
+     */
+    public WriteQueue(DbManPlus dbManager, int maxBatchSize, long maxLatencyMillis) {
+        if (maxBatchSize < 1) throw new IllegalArgumentException("maxBatchSize must be positive");
+        this.mDbManager = dbManager;
+        this.mMaxBatchSize = maxBatchSize;
+        this.mMaxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "DbManPlus-WriteQueue");
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    /**
+     * Queue a row insert (see {@link DbManPlus#insert})
+     * @return future row ID. If the insert throws, the future fails with an
+     *          {@link ExecutionException} and the write is rolled back.
+     */
+    public Future<Long> insert(String tableName, ContentValues initialValues) {
+        return insertWithOnConflict(tableName, initialValues, SQLiteDatabase.CONFLICT_NONE);
+    }
+
+    /**
+     * Queue a row insert (see {@link DbManPlus#insertWithOnConflict})
+     * @return future row ID, -1 if the conflict algorithm skipped the row. If the insert throws, the future
+     *          fails with an {@link ExecutionException} and the write is rolled back.
+     */
+    public Future<Long> insertWithOnConflict(final String tableName, final ContentValues initialValues, final int conflictAlgorithm) {
+        return submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return mDbManager.insertWithOnConflict(tableName, initialValues, conflictAlgorithm);
+            }
+        });
+    }
+
+    /**
+     * Queue an update (see {@link DbManPlus#update})
+     * @return future number of updated rows
+     */
+    public Future<Integer> update(final String tableName, final ContentValues values, final String selection, final String[] selectionArgs) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mDbManager.update(tableName, values, selection, selectionArgs);
+            }
+        });
+    }
+
+    /**
+     * Queue a delete (see {@link DbManPlus#delete})
+     * @return future number of deleted rows
+     */
+    public Future<Integer> delete(final String tableName, final String selection, final String[] selectionArgs) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mDbManager.delete(tableName, selection, selectionArgs);
+            }
+        });
+    }
+
+    /**
+     * Queue any write. It runs on the writer thread inside the transaction of its batch, so it must not
+     * start its own transaction with {@link DbManPlus#doTransaction}.
+     * @param write function doing the write
+     * @return future result of the write
+     */
+    public <V> Future<V> submit(Callable<V> write) {
+        PendingWrite<V> pending = new PendingWrite<>(write);
+        //checked and queued atomically, so that no write can end up behind the shutdown marker
+        synchronized (mQueue) {
+            if (mShutdownRequested) throw new RejectedExecutionException("WriteQueue is shut down");
+            mQueue.add(pending);
+        }
+        return pending;
+    }
+
+    /**
+     * Stop accepting writes. Writes already queued are still committed before the writer thread ends.
+     */
+    public void shutdown() {
+        synchronized (mQueue) {
+            if (mShutdownRequested) return;
+            mShutdownRequested = true;
+            mQueue.add(mShutdown);
+        }
+    }
+
+    /**
+     * Writer thread loop
+     */
+    private void drain() {
+        ArrayList<PendingWrite<?>> batch = new ArrayList<>(mMaxBatchSize);
+        boolean running = true;
+        try {
+            while (running) {
+                PendingWrite<?> first = mQueue.take();
+                if (first == mShutdown) break;
+                batch.add(first);
+
+                long deadline = System.nanoTime() + mMaxLatencyNanos;
+                while (batch.size() < mMaxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingWrite<?> next = remaining > 0 ? mQueue.poll(remaining, TimeUnit.NANOSECONDS) : mQueue.poll();
+                    if (next == null) break;
+                    if (next == mShutdown) {
+                        running = false;
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                commit(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (PendingWrite<?> pending : batch) pending.fail(e);
+            //nothing will run the writes still queued, so do not leave their futures waiting
+            synchronized (mQueue) {
+                mShutdownRequested = true;
+                for (PendingWrite<?> pending : mQueue) pending.fail(e);
+                mQueue.clear();
+            }
+        }
+    }
+
+    /**
+     * Run a batch in one transaction and complete its futures.
+     * <br> If a write throws, the transaction is rolled back, that write fails and the rest are run again.
+     */
+    private void commit(ArrayList<PendingWrite<?>> batch) {
+        final ArrayList<PendingWrite<?>> writes = new ArrayList<>(batch);
+        final ArrayList<PendingWrite<?>> failed = new ArrayList<>(1);
+        try {
+            while (true) {
+                boolean committed = mDbManager.doTransaction(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        for (PendingWrite<?> pending : writes) {
+                            if (pending.isCancelled()) continue;
+                            if (!pending.execute()) {
+                                failed.add(pending);
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                });
+                if (failed.isEmpty()) {
+                    if (!committed) throw new IllegalStateException("batch was not committed");
+                    break;
+                }
+                PendingWrite<?> pending = failed.remove(0);
+                writes.remove(pending);
+                pending.complete();
+            }
+            for (PendingWrite<?> pending : writes) pending.complete();
+        } catch (Exception e) {
+            for (PendingWrite<?> pending : writes) pending.fail(e);
+        }
+    }
+
+    /**
+     * Future of a queued write. The write is run inside the batch transaction and the future is only
+     * completed once the batch outcome is known.
+     */
+    private static final class PendingWrite<V> extends FutureTask<V> {
+        private final Callable<V> mWrite;
+        private V mResult;
+        private Exception mError;
+
+        PendingWrite(Callable<V> write) {
+            super(write);
+            this.mWrite = write;
+        }
+
+        /**
+         * Run the write
+         * @return false if the write threw
+         */
+        boolean execute() {
+            mResult = null;
+            mError = null;
+            try {
+                mResult = mWrite.call();
+            } catch (Exception e) {
+                mError = e;
+            }
+            return mError == null;
+        }
+
+        void complete() {
+            if (mError != null) setException(mError);
+            else set(mResult);
+        }
+
+        void fail(Throwable t) {
+            setException(t);
+        }
+    }
+}
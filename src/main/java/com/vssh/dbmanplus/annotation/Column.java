@@ -0,0 +1,20 @@
+package com.vssh.dbmanplus.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field of a {@link Table} class as a column.
+ * <br> Supported types are the primitive numbers and boolean, their boxed types, {@code String} and
+ * {@code byte[]}. Boxed types and objects are NULL in the database when they are null.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.FIELD)
+public @interface Column {
+    /**
+     * @return name of the column, the name of the field if empty
+     */
+    String value() default "";
+}
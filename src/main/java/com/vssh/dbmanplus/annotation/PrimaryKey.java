@@ -0,0 +1,16 @@
+package com.vssh.dbmanplus.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the primary key column of a {@link Table} class. Implies {@link Column}.
+ * <br> An integer primary key is an alias of the rowid. Use a {@code Long} field to let SQLite assign the key
+ * on insert, a null key is bound as NULL.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.FIELD)
+public @interface PrimaryKey {
+}
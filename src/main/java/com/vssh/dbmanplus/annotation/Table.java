@@ -0,0 +1,21 @@
+package com.vssh.dbmanplus.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a {@link com.vssh.dbmanplus.DbItem} class as a table row, for the DbManPlus annotation processor.
+ * <br> For a class {@code Note} the processor generates {@code Note_Item}, which the class must extend, and the
+ * model {@code Note_Model}. Fields annotated with {@link Column} are the columns of the table. They must not be
+ * private, because the generated code reads and writes them directly.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface Table {
+    /**
+     * @return name of the table, the simple name of the class if empty
+     */
+    String value() default "";
+}
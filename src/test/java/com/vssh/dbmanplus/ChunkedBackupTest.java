@@ -0,0 +1,160 @@
+package com.vssh.dbmanplus;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips and tampering of the chunked backup format
+ */
+public class ChunkedBackupTest {
+    private static final String SALT = "salt";
+    private static final String PASSWORD = "password";
+    /**
+     * Header offset of the iterations, after the magic and the version
+     */
+    private static final int ITERATIONS_OFFSET = ChunkedBackup.MAGIC_LENGTH + 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripOfSeveralChunks() throws Exception {
+        byte[] database = randomBytes(2 * 1024 * 1024 + 12345, 1);
+        byte[] backup = write(database);
+
+        assertTrue(ChunkedBackup.isChunked(backup, backup.length));
+        assertArrayEquals(database, read(backup, PASSWORD));
+    }
+
+    @Test
+    public void roundTripOfEmptyDatabase() throws Exception {
+        assertArrayEquals(new byte[0], read(write(new byte[0]), PASSWORD));
+    }
+
+    @Test
+    public void legacyBackupIsNotChunked() {
+        byte[] header = "SQLite format 3\u0000".getBytes();
+        assertFalse(ChunkedBackup.isChunked(header, header.length));
+        assertFalse(ChunkedBackup.isChunked(new byte[4], 4));
+    }
+
+    @Test
+    public void wrongPasswordFails() throws Exception {
+        byte[] backup = write(randomBytes(4096, 2));
+        assertReadFails(backup, "wrong");
+    }
+
+    @Test
+    public void changedChunkFails() throws Exception {
+        byte[] backup = write(randomBytes(64 * 1024, 3));
+        backup[backup.length / 2] ^= 1;
+        assertReadFails(backup, PASSWORD);
+    }
+
+    @Test
+    public void truncatedBackupFails() throws Exception {
+        byte[] backup = write(randomBytes(64 * 1024, 4));
+        assertReadFails(Arrays.copyOf(backup, backup.length - 10), PASSWORD);
+        //the end record is missing entirely
+        assertReadFails(Arrays.copyOf(backup, backup.length - 48), PASSWORD);
+    }
+
+    @Test
+    public void excessiveIterationsFailBeforeKeyDerivation() throws Exception {
+        byte[] backup = write(randomBytes(1024, 5));
+        ByteBuffer.wrap(backup).putInt(ITERATIONS_OFFSET, Integer.MAX_VALUE);
+        long start = System.nanoTime();
+        assertReadFails(backup, PASSWORD);
+        //deriving the key with that many iterations would take hours
+        assertTrue(System.nanoTime() - start < 10000000000L);
+    }
+
+    @Test
+    public void sealedRecordRoundTrip() throws Exception {
+        ChunkedBackup.Keys keys = keys();
+        byte[] plain = randomBytes(1000, 6);
+        byte[] associated = {1, 2, 3};
+        byte[] sealed = ChunkedBackup.seal(keys, associated, plain);
+        assertArrayEquals(plain, ChunkedBackup.unseal(keys, associated, sealed));
+    }
+
+    @Test
+    public void sealedRecordIsBoundToAssociatedData() throws Exception {
+        ChunkedBackup.Keys keys = keys();
+        byte[] sealed = ChunkedBackup.seal(keys, new byte[]{1}, randomBytes(100, 7));
+        try {
+            ChunkedBackup.unseal(keys, new byte[]{2}, sealed);
+            fail("record was accepted with other associated data");
+        } catch (IOException expected) {
+        }
+        sealed[sealed.length - 1] ^= 1;
+        try {
+            ChunkedBackup.unseal(keys, new byte[]{1}, sealed);
+            fail("changed record was accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static ChunkedBackup.Keys keys() throws Exception {
+        return new ChunkedBackup.Keys(SALT, PASSWORD, new byte[ChunkedBackup.SALT_LENGTH], 1);
+    }
+
+    private byte[] write(byte[] database) throws Exception {
+        File snapshot = folder.newFile();
+        FileOutputStream out = new FileOutputStream(snapshot);
+        try {
+            out.write(database);
+        } finally {
+            out.close();
+        }
+        ByteArrayOutputStream backup = new ByteArrayOutputStream();
+        assertEquals(database.length, ChunkedBackup.write(snapshot, backup, SALT, PASSWORD, null));
+        return backup.toByteArray();
+    }
+
+    private byte[] read(byte[] backup, String password) throws Exception {
+        File target = folder.newFile();
+        long size = ChunkedBackup.read(new ByteArrayInputStream(backup), SALT, password, target, null);
+        byte[] database = new byte[(int) target.length()];
+        assertEquals(size, database.length);
+        FileInputStream in = new FileInputStream(target);
+        try {
+            int read = 0;
+            while (read < database.length) read += in.read(database, read, database.length - read);
+        } finally {
+            in.close();
+        }
+        return database;
+    }
+
+    private void assertReadFails(byte[] backup, String password) throws Exception {
+        try {
+            read(backup, password);
+            fail("backup was accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
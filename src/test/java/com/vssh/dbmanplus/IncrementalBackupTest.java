@@ -0,0 +1,174 @@
+package com.vssh.dbmanplus;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Chains of base and delta backups, and rejection of changed or foreign files
+ */
+public class IncrementalBackupTest {
+    private static final String SALT = "salt";
+    private static final String PASSWORD = "password";
+    private static final int PAGE_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File mDir;
+    private File mSnapshot;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = folder.newFolder("backup");
+        mSnapshot = folder.newFile("snapshot");
+    }
+
+    @Test
+    public void deltasOnlyWriteChangedPages() throws Exception {
+        byte[] database = ChunkedBackupTest.randomBytes(100 * PAGE_SIZE, 1);
+        assertEquals(database.length, export(database, 10));
+
+        database[5 * PAGE_SIZE] ^= 1;
+        database[70 * PAGE_SIZE + 10] ^= 1;
+        assertEquals(2 * PAGE_SIZE, export(database, 10));
+        assertEquals(0, export(database, 10));
+        assertArrayEquals(database, restore(PASSWORD));
+    }
+
+    @Test
+    public void restoresGrowingAndShrinkingDatabase() throws Exception {
+        byte[] database = ChunkedBackupTest.randomBytes(50 * PAGE_SIZE, 2);
+        export(database, 10);
+        database = Arrays.copyOf(database, 80 * PAGE_SIZE);
+        database[79 * PAGE_SIZE] = 1;
+        export(database, 10);
+        database = Arrays.copyOf(database, 30 * PAGE_SIZE);
+        database[3] ^= 1;
+        export(database, 10);
+        assertArrayEquals(database, restore(PASSWORD));
+    }
+
+    @Test
+    public void newBaseReplacesOldChain() throws Exception {
+        byte[] database = ChunkedBackupTest.randomBytes(20 * PAGE_SIZE, 3);
+        export(database, 1);
+        database[0] ^= 1;
+        export(database, 1);
+        assertTrue(new File(mDir, "delta-000001.bak").isFile());
+
+        //the chain is full, so this writes a new base
+        database[PAGE_SIZE] ^= 1;
+        assertEquals(database.length, export(database, 1));
+        assertFalse(new File(mDir, "delta-000001.bak").exists());
+        assertEquals(1, countFiles("base-"));
+        assertArrayEquals(database, restore(PASSWORD));
+    }
+
+    @Test
+    public void wrongPasswordFails() throws Exception {
+        export(ChunkedBackupTest.randomBytes(10 * PAGE_SIZE, 4), 10);
+        assertRestoreFails(PASSWORD + "x");
+    }
+
+    @Test
+    public void changedDeltaFails() throws Exception {
+        byte[] database = ChunkedBackupTest.randomBytes(10 * PAGE_SIZE, 5);
+        export(database, 10);
+        database[0] ^= 1;
+        export(database, 10);
+
+        RandomAccessFile delta = new RandomAccessFile(new File(mDir, "delta-000001.bak"), "rw");
+        try {
+            delta.seek(delta.length() - 40);
+            int b = delta.read();
+            delta.seek(delta.length() - 40);
+            delta.write(b ^ 1);
+        } finally {
+            delta.close();
+        }
+        assertRestoreFails(PASSWORD);
+    }
+
+    @Test
+    public void deltaOfAnotherBackupFails() throws Exception {
+        byte[] database = ChunkedBackupTest.randomBytes(10 * PAGE_SIZE, 6);
+        export(database, 10);
+        database[0] ^= 1;
+        export(database, 10);
+
+        //same password and sequence, but another chain
+        File other = folder.newFolder("other");
+        exportTo(other, database, 10);
+        database[PAGE_SIZE] ^= 1;
+        exportTo(other, database, 10);
+        File delta = new File(mDir, "delta-000001.bak");
+        assertTrue(delta.delete());
+        assertTrue(new File(other, "delta-000001.bak").renameTo(delta));
+        assertRestoreFails(PASSWORD);
+    }
+
+    @Test
+    public void missingBackupFails() throws Exception {
+        assertRestoreFails(PASSWORD);
+    }
+
+    private long export(byte[] database, int maxDeltas) throws Exception {
+        return exportTo(mDir, database, maxDeltas);
+    }
+
+    private long exportTo(File dir, byte[] database, int maxDeltas) throws Exception {
+        FileOutputStream out = new FileOutputStream(mSnapshot);
+        try {
+            out.write(database);
+        } finally {
+            out.close();
+        }
+        return IncrementalBackup.export(mSnapshot, PAGE_SIZE, dir, SALT, PASSWORD, maxDeltas, null);
+    }
+
+    private byte[] restore(String password) throws Exception {
+        File target = new File(folder.getRoot(), "restored");
+        long size = IncrementalBackup.restore(mDir, SALT, password, target, null);
+        byte[] database = new byte[(int) target.length()];
+        assertEquals(size, database.length);
+        FileInputStream in = new FileInputStream(target);
+        try {
+            int read = 0;
+            while (read < database.length) read += in.read(database, read, database.length - read);
+        } finally {
+            in.close();
+        }
+        return database;
+    }
+
+    private void assertRestoreFails(String password) throws Exception {
+        try {
+            restore(password);
+            fail("backup was restored");
+        } catch (IOException expected) {
+        }
+    }
+
+    private int countFiles(String prefix) {
+        int count = 0;
+        for (String name : mDir.list()) {
+            if (name.startsWith(prefix)) count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,53 @@
+package com.vssh.dbmanplus;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Encoding and decoding of page tokens
+ */
+public class PageTokenTest {
+
+    @Test
+    public void roundTripWithoutSortValue() {
+        Page.Token token = Page.Token.decode(new Page.Token(null, "42").encode());
+        assertNull(token.sortValue);
+        assertEquals("42", token.key);
+    }
+
+    @Test
+    public void roundTripWithSortValue() {
+        assertRoundTrip("Smith", "7");
+        assertRoundTrip("", "7");
+        //separators and digits in the values must not confuse the decoder
+        assertRoundTrip("12:34", "5:6");
+        assertRoundTrip("s3:k", "");
+    }
+
+    @Test
+    public void invalidTokensFail() {
+        assertInvalid("");
+        assertInvalid("x42");
+        assertInvalid("s42");
+        assertInvalid("sx:abc");
+        assertInvalid("s10:abc");
+        assertInvalid("s-1:abc");
+    }
+
+    private static void assertRoundTrip(String sortValue, String key) {
+        Page.Token token = Page.Token.decode(new Page.Token(sortValue, key).encode());
+        assertEquals(sortValue, token.sortValue);
+        assertEquals(key, token.key);
+    }
+
+    private static void assertInvalid(String encoded) {
+        try {
+            Page.Token.decode(encoded);
+            fail("decoded " + encoded);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}